@@ -0,0 +1,10 @@
+package codespecs;
+
+/**
+ * The postcondition type of a spec for a method that returns a boolean.
+ * Avoids boxing the return value, unlike Consumer&lt;Boolean&gt;.
+ */
+@FunctionalInterface
+public interface BooleanConsumer {
+	void accept(boolean value);
+}
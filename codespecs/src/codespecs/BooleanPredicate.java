@@ -0,0 +1,6 @@
+package codespecs;
+
+@FunctionalInterface
+public interface BooleanPredicate {
+	boolean test(boolean value);
+}
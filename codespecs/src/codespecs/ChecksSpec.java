@@ -0,0 +1,18 @@
+package codespecs;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Added by CodeSpecsWeaver to the methods into which it has woven a check of the named spec method, as in x.y.ZSpec.mSpec.
+ *
+ * A call site that checks the spec of an interface method calls such a method without checking the spec itself,
+ * so that the spec is checked once.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ChecksSpec {
+	String value();
+}
@@ -1,15 +1,83 @@
 package codespecs;
 
+import java.util.Map;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoublePredicate;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
 import java.util.function.Predicate;
 
 public class CodeSpecs {
+	/**
+	 * Returns whether woven code currently checks specs.
+	 * Checks are enabled at startup unless system property codespecs.enabled is false.
+	 */
+	public static boolean areChecksEnabled() {
+		return CodeSpecsRuntime.areChecksEnabled();
+	}
+	
+	/**
+	 * Enables or disables the checking of specs by woven code, in all threads.
+	 * This can also be done through the ChecksEnabled attribute of JMX bean codespecs:type=CodeSpecs.
+	 * Disabled checks cost nothing once the JIT compiler has recompiled the affected methods.
+	 */
+	public static void setChecksEnabled(boolean enabled) {
+		CodeSpecsRuntime.setChecksEnabled(enabled);
+	}
+
+	/**
+	 * Returns the metrics collected so far by spec sites woven with the metrics agent option,
+	 * keyed by spec method name (as in x.y.ZSpec.mSpec), in name order.
+	 * The same metrics are available through the Metrics attribute of JMX bean codespecs:type=CodeSpecs.
+	 */
+	public static Map<String, SpecMetrics> metricsSnapshot() {
+		return CodeSpecsRuntime.metricsSnapshot();
+	}
+	
+	public static void resetMetrics() {
+		CodeSpecsRuntime.resetMetrics();
+	}
+
+	/**
+	 * Switches woven code to report mode, in which spec failures do not propagate to the caller: spec sites record them as Violations,
+	 * and let the call proceed, and a background thread passes the violations to the given sink. If the sink falls behind by more than
+	 * codespecs.reportBufferSize (default 1024) violations, further violations are dropped and counted instead.
+	 * Passing null switches back to throwing spec failures.
+	 *
+	 * Report mode can also be selected at startup through system property codespecs.report: jmx, count, or log:<file>.
+	 * It does not apply to classes compiled for Java 6 or earlier, which call spec methods directly.
+	 */
+	public static void setViolationSink(ViolationSink sink) {
+		CodeSpecsRuntime.setViolationSink(sink);
+	}
+
+	/** Returns the current violation sink, or null if not in report mode. */
+	public static ViolationSink getViolationSink() {
+		return CodeSpecsRuntime.getViolationSink();
+	}
+
+	/** Returns the number of violations dropped so far because the sink fell behind. */
+	public static long droppedViolationCount() {
+		return ViolationReporter.droppedCount();
+	}
+	
 	public static void requires(boolean condition) {
 		if (!condition)
 			throw new PreconditionFailureException("Precondition does not hold");
 	}
 	
+	/**
+	 * Like requires(condition), but the failure names the clause, as in requires(0 <= amount, "0 <= amount").
+	 */
+	public static void requires(boolean condition, String clause) {
+		if (!condition)
+			throw new PreconditionFailureException("Precondition does not hold", clause);
+	}
+	
 	public static <T> Consumer<T> ensures(Predicate<T> condition) {
 		return self -> {
 			if (!condition.test(self))
@@ -17,10 +85,90 @@ public class CodeSpecs {
 		};
 	}
 	
+	/**
+	 * Like ensures(condition), but the failure names the clause, as in ensures(result -> result != null, "result != null").
+	 */
+	public static <T> Consumer<T> ensures(Predicate<T> condition, String clause) {
+		return self -> {
+			if (!condition.test(self))
+				throw new PostconditionFailureException("Postcondition does not hold", clause);
+		};
+	}
+	
 	public static Runnable ensures(BooleanSupplier condition) {
 		return () -> {
 			if (!condition.getAsBoolean())
 				throw new PostconditionFailureException("Postcondition does not hold");
 		};
 	}
+	
+	public static Runnable ensures(BooleanSupplier condition, String clause) {
+		return () -> {
+			if (!condition.getAsBoolean())
+				throw new PostconditionFailureException("Postcondition does not hold", clause);
+		};
+	}
+	
+	/*
+	 * The following variants avoid boxing the result of methods that return primitive values.
+	 * The weaver uses them if the spec method's return type is the corresponding primitive consumer type:
+	 * IntConsumer for int, short, byte and char; LongConsumer for long; DoubleConsumer for float and double;
+	 * and BooleanConsumer for boolean.
+	 */
+	
+	public static IntConsumer ensuresInt(IntPredicate condition) {
+		return result -> {
+			if (!condition.test(result))
+				throw new PostconditionFailureException("Postcondition does not hold");
+		};
+	}
+	
+	public static IntConsumer ensuresInt(IntPredicate condition, String clause) {
+		return result -> {
+			if (!condition.test(result))
+				throw new PostconditionFailureException("Postcondition does not hold", clause);
+		};
+	}
+	
+	public static LongConsumer ensuresLong(LongPredicate condition) {
+		return result -> {
+			if (!condition.test(result))
+				throw new PostconditionFailureException("Postcondition does not hold");
+		};
+	}
+	
+	public static LongConsumer ensuresLong(LongPredicate condition, String clause) {
+		return result -> {
+			if (!condition.test(result))
+				throw new PostconditionFailureException("Postcondition does not hold", clause);
+		};
+	}
+	
+	public static DoubleConsumer ensuresDouble(DoublePredicate condition) {
+		return result -> {
+			if (!condition.test(result))
+				throw new PostconditionFailureException("Postcondition does not hold");
+		};
+	}
+	
+	public static DoubleConsumer ensuresDouble(DoublePredicate condition, String clause) {
+		return result -> {
+			if (!condition.test(result))
+				throw new PostconditionFailureException("Postcondition does not hold", clause);
+		};
+	}
+	
+	public static BooleanConsumer ensuresBoolean(BooleanPredicate condition) {
+		return result -> {
+			if (!condition.test(result))
+				throw new PostconditionFailureException("Postcondition does not hold");
+		};
+	}
+	
+	public static BooleanConsumer ensuresBoolean(BooleanPredicate condition, String clause) {
+		return result -> {
+			if (!condition.test(result))
+				throw new PostconditionFailureException("Postcondition does not hold", clause);
+		};
+	}
 }
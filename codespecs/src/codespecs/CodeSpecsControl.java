@@ -0,0 +1,55 @@
+package codespecs;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+
+class CodeSpecsControl extends NotificationBroadcasterSupport implements CodeSpecsControlMXBean {
+	static final String VIOLATION_NOTIFICATION = "codespecs.violation";
+
+	private final AtomicLong sequenceNumber = new AtomicLong();
+
+	@Override
+	public boolean isChecksEnabled() {
+		return CodeSpecsRuntime.areChecksEnabled();
+	}
+
+	@Override
+	public void setChecksEnabled(boolean enabled) {
+		CodeSpecsRuntime.setChecksEnabled(enabled);
+	}
+
+	@Override
+	public Map<String, SpecMetrics> getMetrics() {
+		return CodeSpecsRuntime.metricsSnapshot();
+	}
+
+	@Override
+	public void resetMetrics() {
+		CodeSpecsRuntime.resetMetrics();
+	}
+
+	@Override
+	public boolean isReportingViolations() {
+		return ViolationReporter.isReporting();
+	}
+
+	@Override
+	public long getDroppedViolations() {
+		return ViolationReporter.droppedCount();
+	}
+
+	void sendViolationNotification(Violation violation) {
+		sendNotification(new Notification(VIOLATION_NOTIFICATION, CodeSpecsRuntime.OBJECT_NAME, sequenceNumber.incrementAndGet(), violation.getTimeMillis(), violation.toString()));
+	}
+
+	@Override
+	public MBeanNotificationInfo[] getNotificationInfo() {
+		return new MBeanNotificationInfo[] {
+			new MBeanNotificationInfo(new String[] {VIOLATION_NOTIFICATION}, Notification.class.getName(), "A spec failure recorded in report mode")
+		};
+	}
+}
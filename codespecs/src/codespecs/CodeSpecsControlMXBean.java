@@ -0,0 +1,17 @@
+package codespecs;
+
+import java.util.Map;
+
+/**
+ * The management interface of CodeSpecs, registered under the name codespecs:type=CodeSpecs.
+ */
+public interface CodeSpecsControlMXBean {
+	boolean isChecksEnabled();
+	void setChecksEnabled(boolean enabled);
+	Map<String, SpecMetrics> getMetrics();
+	void resetMetrics();
+	/** Whether spec failures are reported to a ViolationSink instead of thrown; see CodeSpecs.setViolationSink. */
+	boolean isReportingViolations();
+	/** The number of violations dropped because the report buffer was full. */
+	long getDroppedViolations();
+}
@@ -1,9 +1,59 @@
 package codespecs;
 
+/**
+ * A spec failure.
+ *
+ * Filling in the stack trace is by far the most expensive part of a failure. If system property codespecs.stackTraces is false,
+ * spec failures have no stack trace; they identify the failing spec through getSpecClassName, getSpecMethodName and getClause instead.
+ * In report mode (see CodeSpecs.setViolationSink), spec failures never have a stack trace, since they are reported rather than thrown.
+ */
 public class CodeSpecsException extends RuntimeException {
 	private static final long serialVersionUID = 1L;
 
+	static final boolean STACK_TRACES = !"false".equals(System.getProperty("codespecs.stackTraces"));
+
+	private final String clause;
+	private String specClassName;
+	private String specMethodName;
+
 	public CodeSpecsException(String message) {
-		super(message);
+		this(message, null);
+	}
+
+	public CodeSpecsException(String message, String clause) {
+		super(message, null, true, STACK_TRACES && !ViolationReporter.isReporting());
+		this.clause = clause;
+	}
+
+	/** The clause that does not hold, as passed to requires or ensures, or null. */
+	public String getClause() {
+		return clause;
+	}
+
+	/** The name of the class of the spec method that failed, or null if the failure was not detected by woven code. */
+	public String getSpecClassName() {
+		return specClassName;
+	}
+
+	/** The name of the spec method that failed, or null if the failure was not detected by woven code. */
+	public String getSpecMethodName() {
+		return specMethodName;
+	}
+
+	void setSpecMethod(String specClassName, String specMethodName) {
+		if (this.specMethodName == null) {
+			this.specClassName = specClassName;
+			this.specMethodName = specMethodName;
+		}
+	}
+
+	@Override
+	public String getMessage() {
+		String message = super.getMessage();
+		if (clause != null)
+			message += ": " + clause;
+		if (specMethodName != null)
+			message += " (" + specClassName + "." + specMethodName + ")";
+		return message;
 	}
 }
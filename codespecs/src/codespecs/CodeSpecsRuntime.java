@@ -0,0 +1,583 @@
+package codespecs;
+
+import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleInfo;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+import javax.management.ObjectName;
+
+/**
+ * Support code called by the bytecode that CodeSpecsWeaver weaves into classes. Not meant to be called directly.
+ *
+ * Woven code calls spec methods through invokedynamic instructions bound to spec sites by bootstrapSpec.
+ * While checks are enabled, a spec site calls the spec method. While checks are disabled, it returns a null postcondition
+ * without calling the spec method, and the checkPostcondition methods ignore null postconditions.
+ * Since the target of a spec site is a constant to the JIT compiler, disabled checks compile down to nothing.
+ *
+ * A spec site with a sampling rate N greater than one calls the spec method for about one in N calls only,
+ * as decided by a thread-local random number generator, and returns a null postcondition for the other calls.
+ *
+ * If the METRICS flag is set, a spec site counts the calls, failures and time of the spec method and of the postconditions it returns.
+ * Spec sites that call the same spec method share their counters.
+ *
+ * A spec site bound by bootstrapLazySpec looks up its spec method only when it first checks its spec, so that spec classes load no earlier than needed.
+ *
+ * A spec site records the spec method in the precondition failures the spec method throws, so that they identify the failing spec even without a stack trace.
+ *
+ * A thread does not check specs while it evaluates a spec method or a postcondition, so that the methods with specs that a spec calls,
+ * such as getters, do not check their own specs, which could call further methods with specs, and so on; the spec is checked, not the methods it uses.
+ * Set system property codespecs.nestedChecks to true to check them anyway.
+ *
+ * In report mode, a spec site records the failures of the spec method and of the postconditions it returns as Violations, instead of letting them propagate;
+ * see ViolationReporter.
+ *
+ * Classes woven by an agent attached at run time instead call methods with specs through call sites bound by bootstrapCheckedCall,
+ * which combine a spec site, the method and the postcondition check.
+ */
+public final class CodeSpecsRuntime {
+	private CodeSpecsRuntime() {}
+
+	static final String OBJECT_NAME = "codespecs:type=CodeSpecs";
+	static final CodeSpecsControl CONTROL = new CodeSpecsControl();
+
+	private static volatile boolean checksEnabled = !"false".equals(System.getProperty("codespecs.enabled"));
+	/** The target of the call sites with which inlined specs test whether checks are enabled; see bootstrapInlinedChecks. */
+	private static final MutableCallSite inlinedChecks = new MutableCallSite(MethodHandles.constant(boolean.class, checksEnabled));
+	private static final List<WeakReference<SpecSite>> specSites = new ArrayList<>();
+	private static final ConcurrentHashMap<String, SpecCounters> specCounters = new ConcurrentHashMap<>();
+
+	/** The bootstrapSpec flag that asks for metrics. Must match CodeSpecsWeaver.SPEC_SITE_METRICS. */
+	static final int METRICS = 1;
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(CONTROL, new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			// Another copy of codespecs, loaded by another class loader, registered first; or JMX is not available.
+		}
+		String report = System.getProperty("codespecs.report");
+		if (report != null) {
+			try {
+				setViolationSink(report.equals("jmx") ? ViolationSink.jmxNotifications()
+						: report.equals("count") ? ViolationSink.counter()
+						: report.startsWith("log:") ? ViolationSink.logFile(Paths.get(report.substring("log:".length())))
+						: null);
+			} catch (IOException e) {
+				System.err.println("codespecs: cannot open violation log: " + e);
+			}
+		}
+	}
+
+	static final boolean NESTED_CHECKS = Boolean.getBoolean("codespecs.nestedChecks");
+	/**
+	 * Whether the current thread is evaluating a spec. A mutable flag rather than a Boolean, so that entering and leaving a spec
+	 * look up the thread local but never set it, and not inherited, so that it costs each thread one small object, created on its first check.
+	 */
+	private static final ThreadLocal<boolean[]> inSpec = ThreadLocal.withInitial(() -> new boolean[1]);
+
+	private static final MethodHandle SAMPLE;
+	private static final MethodHandle SPEC_FAILED;
+	private static final MethodHandle RESOLVE_AND_CHECK;
+	private static final MethodHandle ENTER_SPEC;
+	private static final MethodHandle EXIT_SPEC;
+	private static final MethodHandle EXIT_SPEC_AND_RETHROW;
+	private static final MethodHandle CHECKS_SPEC_ITSELF;
+	
+	static {
+		try {
+			SAMPLE = MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "sample", MethodType.methodType(boolean.class, int.class));
+			SPEC_FAILED = MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "specFailed", MethodType.methodType(Object.class, PreconditionFailureException.class, String.class, String.class));
+			RESOLVE_AND_CHECK = MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "resolveAndCheck", MethodType.methodType(Object.class, SpecSite.class, Object[].class));
+			ENTER_SPEC = MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "enterSpec", MethodType.methodType(boolean.class));
+			EXIT_SPEC = MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "exitSpec", MethodType.methodType(Object.class, Object.class));
+			EXIT_SPEC_AND_RETHROW = MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "exitSpecAndRethrow", MethodType.methodType(Object.class, Throwable.class));
+			CHECKS_SPEC_ITSELF = MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "checksSpecItself", MethodType.methodType(boolean.class, ImplementationChecksSpec.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	static boolean sample(int samplingRate) {
+		return ThreadLocalRandom.current().nextInt(samplingRate) == 0;
+	}
+	
+	/**
+	 * Marks the current thread as evaluating a spec and returns true, or returns false if it already is.
+	 */
+	public static boolean enterSpec() {
+		if (NESTED_CHECKS)
+			return true;
+		boolean[] flag = inSpec.get();
+		if (flag[0])
+			return false;
+		flag[0] = true;
+		return true;
+	}
+
+	public static void exitSpec() {
+		if (!NESTED_CHECKS)
+			inSpec.get()[0] = false;
+	}
+
+	static Object exitSpec(Object postcondition) {
+		exitSpec();
+		return postcondition;
+	}
+
+	static Object exitSpecAndRethrow(Throwable t) throws Throwable {
+		exitSpec();
+		throw t;
+	}
+
+	/**
+	 * Returns a handle that calls check outside specs and skip inside specs.
+	 */
+	static MethodHandle guardNested(MethodHandle check, MethodHandle skip) {
+		if (NESTED_CHECKS)
+			return check;
+		MethodType type = check.type();
+		check = MethodHandles.filterReturnValue(check, EXIT_SPEC.asType(MethodType.methodType(type.returnType(), type.returnType())));
+		check = MethodHandles.catchException(check, Throwable.class, MethodHandles.dropArguments(EXIT_SPEC_AND_RETHROW.asType(MethodType.methodType(type.returnType(), Throwable.class)), 1, type.parameterList()));
+		return MethodHandles.guardWithTest(MethodHandles.dropArguments(ENTER_SPEC, 0, type.parameterList()), check, skip);
+	}
+
+	static Object specFailed(PreconditionFailureException e, String specClassName, String specMethodName) {
+		e.setSpecMethod(specClassName, specMethodName);
+		if (SpecEvents.AVAILABLE)
+			SpecEvents.failed(specClassName, specMethodName, false, e.getClause());
+		throw e;
+	}
+
+	/**
+	 * Bootstraps the ()Z call sites with which specs inlined by the weaver's inlineSpecs option test whether checks are enabled.
+	 * They all share one call site, whose constant target is relinked along with the spec sites.
+	 */
+	public static CallSite bootstrapInlinedChecks(MethodHandles.Lookup lookup, String name, MethodType type) {
+		return inlinedChecks;
+	}
+
+	/**
+	 * Called by inlined specs in place of CodeSpecs.requires. In report mode, records the failure and lets the spec go on.
+	 */
+	public static void checkInlinedPrecondition(boolean condition, String clause, String specClassName, String specMethodName) {
+		if (condition)
+			return;
+		if (SpecEvents.AVAILABLE)
+			SpecEvents.failed(specClassName, specMethodName, false, clause);
+		if (ViolationReporter.isReporting()) {
+			ViolationReporter.offer(new Violation(Violation.Kind.PRECONDITION, specClassName, specMethodName, clause, null, ""));
+			return;
+		}
+		PreconditionFailureException e = clause == null ? new PreconditionFailureException("Precondition does not hold") : new PreconditionFailureException("Precondition does not hold", clause);
+		e.setSpecMethod(specClassName, specMethodName);
+		throw e;
+	}
+
+	/**
+	 * Called by inlined specs with the value of the condition passed to CodeSpecs.ensures.
+	 */
+	public static void checkInlinedPostcondition(boolean condition, String specClassName, String specMethodName) {
+		checkInlinedPostcondition(condition, null, specClassName, specMethodName);
+	}
+
+	/**
+	 * Called by inlined specs with the value of the condition and the clause passed to CodeSpecs.ensures.
+	 */
+	public static void checkInlinedPostcondition(boolean condition, String clause, String specClassName, String specMethodName) {
+		if (condition)
+			return;
+		if (SpecEvents.AVAILABLE)
+			SpecEvents.failed(specClassName, specMethodName, true, clause);
+		if (ViolationReporter.isReporting()) {
+			ViolationReporter.offer(new Violation(Violation.Kind.POSTCONDITION, specClassName, specMethodName, clause, null, ""));
+			return;
+		}
+		PostconditionFailureException e = clause == null ? new PostconditionFailureException("Postcondition does not hold") : new PostconditionFailureException("Postcondition does not hold", clause);
+		e.setSpecMethod(specClassName, specMethodName);
+		throw e;
+	}
+
+	static class SpecSite extends MutableCallSite {
+		final MethodHandles.Lookup lookup;
+		final String specClassName;
+		final String specMethodName;
+		final int samplingRate;
+		final int flags;
+		/** The spec method, wrapped by prepare; null until a lazy spec site first checks its spec. */
+		private volatile MethodHandle spec;
+		/** The spec, wrapped for report mode; null until first needed. */
+		private volatile MethodHandle reportingSpec;
+
+		SpecSite(MethodType type, MethodHandles.Lookup lookup, String specClassName, String specMethodName, MethodHandle spec, int samplingRate, int flags) throws ReflectiveOperationException {
+			super(type);
+			this.lookup = lookup;
+			this.specClassName = specClassName;
+			this.specMethodName = specMethodName;
+			this.samplingRate = samplingRate;
+			this.flags = flags;
+			if (spec != null)
+				this.spec = prepare(spec);
+			relink();
+		}
+
+		/**
+		 * Records the spec method in the precondition failures it throws and, if the METRICS flag is set, meters it.
+		 * Has it record Flight Recorder events while a recording is running; see SpecEvents.
+		 */
+		private MethodHandle prepare(MethodHandle spec) throws ReflectiveOperationException {
+			MethodHandle specFailed = MethodHandles.insertArguments(SPEC_FAILED, 1, specClassName, specMethodName).asType(MethodType.methodType(spec.type().returnType(), PreconditionFailureException.class));
+			spec = MethodHandles.catchException(spec, PreconditionFailureException.class, MethodHandles.dropArguments(specFailed, 1, spec.type().parameterList()));
+			if ((flags & METRICS) != 0)
+				spec = specCounters.computeIfAbsent(specClassName + "." + specMethodName, k -> new SpecCounters()).meter(spec);
+			return SpecEvents.recording(spec, specClassName, specMethodName);
+		}
+
+		/**
+		 * Looks up the spec method of a lazy spec site, which loads the spec class, and links the site to it.
+		 */
+		MethodHandle resolve() {
+			MethodHandle spec = this.spec;
+			if (spec == null) {
+				synchronized (this) {
+					spec = this.spec;
+					if (spec == null) {
+						try {
+							Class<?> specClass = Class.forName(specClassName, false, lookup.lookupClass().getClassLoader());
+							this.spec = spec = prepare(lookup.findStatic(specClass, specMethodName, type()));
+						} catch (ReflectiveOperationException e) {
+							throw new BootstrapMethodError("Cannot resolve spec method " + specClassName + "." + specMethodName, e);
+						}
+					}
+				}
+				synchronized (specSites) {
+					relink();
+				}
+			}
+			return checkHandle();
+		}
+
+		/**
+		 * Returns the spec, wrapped for report mode if in report mode, or null if not yet resolved.
+		 */
+		private MethodHandle checkHandle() {
+			MethodHandle spec = this.spec;
+			if (spec == null || !ViolationReporter.isReporting())
+				return spec;
+			MethodHandle reportingSpec = this.reportingSpec;
+			if (reportingSpec == null)
+				this.reportingSpec = reportingSpec = ViolationReporter.reporting(spec, specClassName, specMethodName);
+			return reportingSpec;
+		}
+
+		void relink() {
+			MethodHandle skip = MethodHandles.dropArguments(MethodHandles.constant(type().returnType(), null), 0, type().parameterList());
+			MethodHandle check = checkHandle();
+			if (check == null)
+				check = RESOLVE_AND_CHECK.bindTo(this).asCollector(Object[].class, type().parameterCount()).asType(type());
+			check = guardNested(check, skip);
+			if (!checksEnabled)
+				setTarget(skip);
+			else if (samplingRate > 1)
+				setTarget(MethodHandles.guardWithTest(MethodHandles.dropArguments(MethodHandles.insertArguments(SAMPLE, 0, samplingRate), 0, type().parameterList()), check, skip));
+			else
+				setTarget(check);
+		}
+	}
+
+	static Object resolveAndCheck(SpecSite site, Object[] arguments) throws Throwable {
+		return site.resolve().invokeWithArguments(arguments);
+	}
+
+	public static CallSite bootstrapSpec(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle spec, int samplingRate, int flags) throws ReflectiveOperationException {
+		MethodHandleInfo info = lookup.revealDirect(spec);
+		return register(new SpecSite(type, lookup, info.getDeclaringClass().getName(), info.getName(), spec, samplingRate, flags));
+	}
+
+	/**
+	 * Like bootstrapSpec, but looks up the spec method, named like the call site, only when the spec site first checks its spec,
+	 * so that the spec class is not loaded while checks are disabled, or before a sampled spec site first samples a call.
+	 */
+	public static CallSite bootstrapLazySpec(MethodHandles.Lookup lookup, String name, MethodType type, String specClassName, int samplingRate, int flags) throws ReflectiveOperationException {
+		return register(new SpecSite(type, lookup, specClassName, name, null, samplingRate, flags));
+	}
+
+	private static SpecSite register(SpecSite site) {
+		synchronized (specSites) {
+			specSites.add(new WeakReference<>(site));
+		}
+		return site;
+	}
+
+	/**
+	 * Bootstraps a call of an instance method that checks the spec declared for the method in the spec class of the spec's first parameter type.
+	 * Classes woven by an agent attached at run time call methods with specs through such call sites rather than through name$codespecs wrappers,
+	 * since retransformation cannot add the wrappers to the classes that were loaded already.
+	 * If the receiver's class implements the method with a method annotated @ChecksSpec for the same spec, the call site calls it
+	 * without checking the spec, so that the spec is checked once.
+	 */
+	public static CallSite bootstrapCheckedCall(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle spec, MethodHandle method, int samplingRate, int flags) throws ReflectiveOperationException {
+		Class<?> postconditionType = spec.type().returnType();
+		SpecSite site = (SpecSite)bootstrapSpec(lookup, name, spec.type(), spec, samplingRate, flags);
+		MethodHandle specSite = site.dynamicInvoker().asType(type.changeReturnType(postconditionType));
+		String specName = site.specClassName + "." + site.specMethodName;
+		method = method.asType(type);
+		Class<?> returnType = type.returnType();
+		// (receiver, arguments..., postcondition) -> result
+		MethodHandle callAndCheck;
+		if (returnType == void.class) {
+			MethodHandle check = MethodHandles.insertArguments(MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "checkPostcondition", MethodType.methodType(void.class, Runnable.class, String.class)), 1, specName);
+			callAndCheck = MethodHandles.collectArguments(check, 0, method);
+		} else {
+			MethodHandle check = MethodHandles.insertArguments(MethodHandles.lookup().findStatic(CodeSpecsRuntime.class, "checkPostcondition",
+					MethodType.methodType(void.class, postconditionArgumentType(postconditionType), postconditionType, String.class)), 2, specName)
+					.asType(MethodType.methodType(void.class, returnType, postconditionType));
+			MethodHandle checkAndReturn = MethodHandles.foldArguments(MethodHandles.dropArguments(MethodHandles.identity(returnType), 1, postconditionType), check);
+			callAndCheck = MethodHandles.collectArguments(checkAndReturn, 0, method);
+		}
+		int[] reorder = new int[type.parameterCount() + 1];
+		for (int i = 0; i < type.parameterCount(); i++)
+			reorder[i] = i + 1;
+		MethodHandle checkedCall = MethodHandles.permuteArguments(callAndCheck, type.insertParameterTypes(0, postconditionType), reorder);
+		checkedCall = MethodHandles.foldArguments(checkedCall, specSite);
+		ImplementationChecksSpec implementationChecksSpec = new ImplementationChecksSpec(name, type.dropParameterTypes(0, 1).parameterArray(), specName);
+		MethodHandle test = MethodHandles.insertArguments(CHECKS_SPEC_ITSELF, 0, implementationChecksSpec).asType(MethodType.methodType(boolean.class, type.parameterType(0)));
+		test = MethodHandles.dropArguments(test, 1, type.dropParameterTypes(0, 1).parameterList());
+		return new ConstantCallSite(MethodHandles.guardWithTest(test, method, checkedCall));
+	}
+
+	static boolean checksSpecItself(ImplementationChecksSpec implementationChecksSpec, Object receiver) {
+		return receiver != null && implementationChecksSpec.get(receiver.getClass());
+	}
+
+	/**
+	 * Tells, for a receiver class, whether the method that implements the given method in that class is annotated @ChecksSpec with the given spec.
+	 * If no class declares the method, the implementation is the interface default method that the JVM selects: the only non-abstract one among
+	 * the maximally specific superinterface methods.
+	 */
+	static class ImplementationChecksSpec extends ClassValue<Boolean> {
+		final String methodName;
+		final Class<?>[] parameterTypes;
+		final String specName;
+
+		ImplementationChecksSpec(String methodName, Class<?>[] parameterTypes, String specName) {
+			this.methodName = methodName;
+			this.parameterTypes = parameterTypes;
+			this.specName = specName;
+		}
+
+		@Override
+		protected Boolean computeValue(Class<?> receiverClass) {
+			for (Class<?> c = receiverClass; c != null; c = c.getSuperclass()) {
+				Method method;
+				try {
+					method = c.getDeclaredMethod(methodName, parameterTypes);
+				} catch (NoSuchMethodException e) {
+					continue;
+				}
+				if ((method.getModifiers() & (Modifier.STATIC | Modifier.PRIVATE)) != 0)
+					continue;
+				return checksSpec(method);
+			}
+			List<Method> candidates = new ArrayList<>();
+			for (Class<?> c = receiverClass; c != null; c = c.getSuperclass())
+				collectInterfaceMethods(c.getInterfaces(), candidates);
+			Method selected = null;
+			for (Method method : candidates) {
+				if (!method.isDefault() || candidates.stream().anyMatch(other -> other != method && method.getDeclaringClass().isAssignableFrom(other.getDeclaringClass())))
+					continue;
+				if (selected != null)
+					return false; // Ambiguous; the call fails.
+				selected = method;
+			}
+			return selected != null && checksSpec(selected);
+		}
+
+		private void collectInterfaceMethods(Class<?>[] interfaces, List<Method> methods) {
+			for (Class<?> i : interfaces) {
+				try {
+					Method method = i.getDeclaredMethod(methodName, parameterTypes);
+					if ((method.getModifiers() & (Modifier.STATIC | Modifier.PRIVATE)) == 0 && !methods.contains(method))
+						methods.add(method);
+				} catch (NoSuchMethodException e) {
+				}
+				collectInterfaceMethods(i.getInterfaces(), methods);
+			}
+		}
+
+		private boolean checksSpec(Method method) {
+			ChecksSpec checksSpec = method.getAnnotation(ChecksSpec.class);
+			return checksSpec != null && checksSpec.value().equals(specName);
+		}
+	}
+
+	private static Class<?> postconditionArgumentType(Class<?> postconditionType) {
+		if (postconditionType == BooleanConsumer.class)
+			return boolean.class;
+		if (postconditionType == IntConsumer.class)
+			return int.class;
+		if (postconditionType == LongConsumer.class)
+			return long.class;
+		if (postconditionType == DoubleConsumer.class)
+			return double.class;
+		return Object.class;
+	}
+
+	static boolean areChecksEnabled() {
+		return checksEnabled;
+	}
+
+	static void setChecksEnabled(boolean enabled) {
+		synchronized (specSites) {
+			if (checksEnabled == enabled)
+				return;
+			checksEnabled = enabled;
+			relinkSpecSites();
+		}
+	}
+
+	static ViolationSink getViolationSink() {
+		return ViolationReporter.getSink();
+	}
+
+	static void setViolationSink(ViolationSink sink) {
+		synchronized (specSites) {
+			boolean wasReporting = ViolationReporter.isReporting();
+			ViolationReporter.setSink(sink);
+			if (wasReporting != (sink != null))
+				relinkSpecSites();
+		}
+	}
+
+	private static void relinkSpecSites() {
+		List<SpecSite> sites = new ArrayList<>(specSites.size());
+		for (Iterator<WeakReference<SpecSite>> i = specSites.iterator(); i.hasNext(); ) {
+			SpecSite site = i.next().get();
+			if (site == null) {
+				i.remove();
+			} else {
+				site.relink();
+				sites.add(site);
+			}
+		}
+		inlinedChecks.setTarget(MethodHandles.constant(boolean.class, checksEnabled));
+		MutableCallSite[] sitesToSync = sites.toArray(new MutableCallSite[sites.size() + 1]);
+		sitesToSync[sites.size()] = inlinedChecks;
+		MutableCallSite.syncAll(sitesToSync);
+	}
+
+	static Map<String, SpecMetrics> metricsSnapshot() {
+		Map<String, SpecMetrics> snapshot = new TreeMap<>();
+		specCounters.forEach((specName, counters) -> snapshot.put(specName, counters.snapshot()));
+		return snapshot;
+	}
+
+	static void resetMetrics() {
+		specCounters.values().forEach(SpecCounters::reset);
+	}
+
+	/*
+	 * The weaver passes the checkPostcondition methods the name of the spec method that returned the postcondition, as in x.y.ZSpec.mSpec,
+	 * with which they tag the postcondition's failure.
+	 */
+
+	private static PostconditionFailureException postconditionFailed(PostconditionFailureException e, String spec) {
+		int dot = spec.lastIndexOf('.');
+		e.setSpecMethod(spec.substring(0, dot), spec.substring(dot + 1));
+		if (SpecEvents.AVAILABLE)
+			SpecEvents.failed(e.getSpecClassName(), e.getSpecMethodName(), true, e.getClause());
+		return e;
+	}
+
+	public static void checkPostcondition(Runnable postcondition, String spec) {
+		if (postcondition != null && enterSpec()) {
+			try {
+				postcondition.run();
+			} catch (PostconditionFailureException e) {
+				throw postconditionFailed(e, spec);
+			} finally {
+				exitSpec();
+			}
+		}
+	}
+
+	public static <T> void checkPostcondition(T result, Consumer<T> postcondition, String spec) {
+		if (postcondition != null && enterSpec()) {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				throw postconditionFailed(e, spec);
+			} finally {
+				exitSpec();
+			}
+		}
+	}
+
+	public static void checkPostcondition(int result, IntConsumer postcondition, String spec) {
+		if (postcondition != null && enterSpec()) {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				throw postconditionFailed(e, spec);
+			} finally {
+				exitSpec();
+			}
+		}
+	}
+
+	public static void checkPostcondition(long result, LongConsumer postcondition, String spec) {
+		if (postcondition != null && enterSpec()) {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				throw postconditionFailed(e, spec);
+			} finally {
+				exitSpec();
+			}
+		}
+	}
+
+	public static void checkPostcondition(double result, DoubleConsumer postcondition, String spec) {
+		if (postcondition != null && enterSpec()) {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				throw postconditionFailed(e, spec);
+			} finally {
+				exitSpec();
+			}
+		}
+	}
+
+	public static void checkPostcondition(boolean result, BooleanConsumer postcondition, String spec) {
+		if (postcondition != null && enterSpec()) {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				throw postconditionFailed(e, spec);
+			} finally {
+				exitSpec();
+			}
+		}
+	}
+}
@@ -6,4 +6,8 @@ public class PostconditionFailureException extends CodeSpecsException {
 	public PostconditionFailureException(String message) {
 		super(message);
 	}
+	
+	public PostconditionFailureException(String message, String clause) {
+		super(message, clause);
+	}
 }
@@ -6,4 +6,8 @@ public class PreconditionFailureException extends CodeSpecsException {
 	public PreconditionFailureException(String message) {
 		super(message);
 	}
+	
+	public PreconditionFailureException(String message, String clause) {
+		super(message, clause);
+	}
 }
@@ -0,0 +1,190 @@
+package codespecs;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * The live counters behind SpecMetrics. LongAdders keep contention low when many threads call the same method.
+ */
+class SpecCounters {
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodHandle NANO_TIME;
+	private static final MethodHandle PRECONDITION_FAILED;
+
+	static {
+		try {
+			NANO_TIME = LOOKUP.findStatic(System.class, "nanoTime", MethodType.methodType(long.class));
+			PRECONDITION_FAILED = LOOKUP.findVirtual(SpecCounters.class, "preconditionFailed", MethodType.methodType(Object.class, Throwable.class, long.class));
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	final LongAdder invocations = new LongAdder();
+	final LongAdder preconditionFailures = new LongAdder();
+	final LongAdder postconditionFailures = new LongAdder();
+	final LongAdder specNanos = new LongAdder();
+
+	SpecMetrics snapshot() {
+		return new SpecMetrics(invocations.sum(), preconditionFailures.sum(), postconditionFailures.sum(), specNanos.sum());
+	}
+
+	void reset() {
+		invocations.reset();
+		preconditionFailures.reset();
+		postconditionFailures.reset();
+		specNanos.reset();
+	}
+
+	/**
+	 * Returns a handle of the same type as the given spec method handle that also updates these counters,
+	 * and that wraps the postcondition returned by the spec method so that it updates them too.
+	 */
+	MethodHandle meter(MethodHandle spec) throws ReflectiveOperationException {
+		MethodType type = spec.type();
+		Class<?> postconditionType = type.returnType();
+		MethodHandle afterSpec;
+		try {
+			afterSpec = LOOKUP.findVirtual(SpecCounters.class, "afterSpec", MethodType.methodType(postconditionType, postconditionType, long.class));
+		} catch (NoSuchMethodException e) {
+			afterSpec = LOOKUP.findVirtual(SpecCounters.class, "afterSpec", MethodType.methodType(Object.class, Object.class, long.class));
+		}
+		afterSpec = afterSpec.bindTo(this).asType(MethodType.methodType(postconditionType, postconditionType, long.class));
+		MethodHandle preconditionFailed = PRECONDITION_FAILED.bindTo(this).asType(MethodType.methodType(postconditionType, Throwable.class, long.class));
+		// (long start, args...) -> postcondition, where start is the time at which the spec method was called
+		MethodHandle timedSpec = MethodHandles.catchException(MethodHandles.dropArguments(spec, 0, long.class), Throwable.class,
+				MethodHandles.dropArguments(preconditionFailed, 2, type.parameterList()));
+		MethodHandle result = MethodHandles.foldArguments(MethodHandles.dropArguments(afterSpec, 2, type.parameterList()), timedSpec);
+		return MethodHandles.foldArguments(result, NANO_TIME);
+	}
+
+	Object preconditionFailed(Throwable t, long start) throws Throwable {
+		specNanos.add(System.nanoTime() - start);
+		invocations.increment();
+		if (t instanceof PreconditionFailureException)
+			preconditionFailures.increment();
+		throw t;
+	}
+
+	private boolean afterSpecReturned(Object postcondition, long start) {
+		specNanos.add(System.nanoTime() - start);
+		invocations.increment();
+		return postcondition != null;
+	}
+
+	private void afterPostcondition(long start) {
+		specNanos.add(System.nanoTime() - start);
+	}
+
+	private void postconditionFailed(Throwable t) {
+		if (t instanceof PostconditionFailureException)
+			postconditionFailures.increment();
+	}
+
+	Object afterSpec(Object postcondition, long start) {
+		afterSpecReturned(postcondition, start);
+		return postcondition;
+	}
+
+	Runnable afterSpec(Runnable postcondition, long start) {
+		if (!afterSpecReturned(postcondition, start))
+			return null;
+		return () -> {
+			long postconditionStart = System.nanoTime();
+			try {
+				postcondition.run();
+			} catch (Throwable t) {
+				postconditionFailed(t);
+				throw t;
+			} finally {
+				afterPostcondition(postconditionStart);
+			}
+		};
+	}
+
+	<T> Consumer<T> afterSpec(Consumer<T> postcondition, long start) {
+		if (!afterSpecReturned(postcondition, start))
+			return null;
+		return result -> {
+			long postconditionStart = System.nanoTime();
+			try {
+				postcondition.accept(result);
+			} catch (Throwable t) {
+				postconditionFailed(t);
+				throw t;
+			} finally {
+				afterPostcondition(postconditionStart);
+			}
+		};
+	}
+
+	IntConsumer afterSpec(IntConsumer postcondition, long start) {
+		if (!afterSpecReturned(postcondition, start))
+			return null;
+		return result -> {
+			long postconditionStart = System.nanoTime();
+			try {
+				postcondition.accept(result);
+			} catch (Throwable t) {
+				postconditionFailed(t);
+				throw t;
+			} finally {
+				afterPostcondition(postconditionStart);
+			}
+		};
+	}
+
+	LongConsumer afterSpec(LongConsumer postcondition, long start) {
+		if (!afterSpecReturned(postcondition, start))
+			return null;
+		return result -> {
+			long postconditionStart = System.nanoTime();
+			try {
+				postcondition.accept(result);
+			} catch (Throwable t) {
+				postconditionFailed(t);
+				throw t;
+			} finally {
+				afterPostcondition(postconditionStart);
+			}
+		};
+	}
+
+	DoubleConsumer afterSpec(DoubleConsumer postcondition, long start) {
+		if (!afterSpecReturned(postcondition, start))
+			return null;
+		return result -> {
+			long postconditionStart = System.nanoTime();
+			try {
+				postcondition.accept(result);
+			} catch (Throwable t) {
+				postconditionFailed(t);
+				throw t;
+			} finally {
+				afterPostcondition(postconditionStart);
+			}
+		};
+	}
+
+	BooleanConsumer afterSpec(BooleanConsumer postcondition, long start) {
+		if (!afterSpecReturned(postcondition, start))
+			return null;
+		return result -> {
+			long postconditionStart = System.nanoTime();
+			try {
+				postcondition.accept(result);
+			} catch (Throwable t) {
+				postconditionFailed(t);
+				throw t;
+			} finally {
+				afterPostcondition(postconditionStart);
+			}
+		};
+	}
+}
@@ -0,0 +1,307 @@
+package codespecs;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for spec checks: a codespecs.SpecCheck duration event for each call of a spec method by a spec site,
+ * and for each check of the postcondition it returned, and a codespecs.SpecFailure instant event for each precondition or postcondition failure.
+ * Both are disabled by default; enable them in the recording's settings, as in Recording.enable("codespecs.SpecCheck").
+ *
+ * Spec sites check whether a recording is running through a call site whose target is a constant, which changes when recordings start and stop,
+ * so that, as for disabled checks, the events cost nothing once the JIT compiler has recompiled the affected methods. While a recording is running,
+ * the events are created and committed only if the recording enables them. On a JVM without Flight Recorder, spec sites record no events.
+ * Since initializing Flight Recorder is slow, spec sites follow recordings, and record spec check events, only if the JVM is started with
+ * -Dcodespecs.flightRecorder=true. Spec failures are rare, so each one checks whether something else, such as starting a recording, has initialized
+ * Flight Recorder, and records its event if so. Specs inlined by the weaver's inlineSpecs option record only failures.
+ */
+final class SpecEvents {
+	private SpecEvents() {}
+
+	@Name("codespecs.SpecCheck")
+	@Label("Spec Check")
+	@Category("Code Specs")
+	@Description("Evaluation of a spec method, or of the postcondition it returned")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class SpecCheck extends Event {
+		@Label("Spec Class")
+		String specClass;
+		@Label("Spec Method")
+		String specMethod;
+		@Label("Postcondition")
+		boolean postcondition;
+	}
+
+	@Name("codespecs.SpecFailure")
+	@Label("Spec Failure")
+	@Category("Code Specs")
+	@Description("A precondition or postcondition that does not hold")
+	@Enabled(false)
+	static final class SpecFailure extends Event {
+		@Label("Spec Class")
+		String specClass;
+		@Label("Spec Method")
+		String specMethod;
+		@Label("Postcondition")
+		boolean postcondition;
+		@Label("Clause")
+		String clause;
+	}
+
+	/** Whether this JVM has the Flight Recorder API. */
+	static final boolean AVAILABLE;
+	/** Whether spec sites record spec check events. */
+	static final boolean SPEC_CHECKS = Boolean.getBoolean("codespecs.flightRecorder");
+	/** Whether a recording is running. */
+	private static final MutableCallSite recording = new MutableCallSite(MethodHandles.constant(boolean.class, false));
+	private static volatile boolean running;
+	private static boolean listening;
+	private static boolean registered;
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodHandle BEGIN;
+	private static final MethodHandle SPEC_FAILED;
+
+	static {
+		boolean available;
+		try {
+			Class.forName("jdk.jfr.FlightRecorder", false, SpecEvents.class.getClassLoader());
+			available = true;
+		} catch (ClassNotFoundException | LinkageError | SecurityException e) {
+			available = false;
+		}
+		AVAILABLE = available;
+		if (available) {
+			try {
+				BEGIN = LOOKUP.findStatic(SpecEvents.class, "begin", MethodType.methodType(SpecCheck.class, String.class, String.class, boolean.class));
+				SPEC_FAILED = LOOKUP.findStatic(SpecEvents.class, "specFailed", MethodType.methodType(Object.class, Throwable.class, SpecCheck.class));
+			} catch (ReflectiveOperationException e) {
+				throw new AssertionError(e);
+			}
+			// Initializing Flight Recorder, as adding a listener or registering an event does, takes hundreds of milliseconds,
+			// so do it only if asked to, and register the events only once a recording starts.
+			if (SPEC_CHECKS)
+				listen();
+		} else {
+			BEGIN = null;
+			SPEC_FAILED = null;
+		}
+	}
+
+	/**
+	 * Starts following recordings, initializing Flight Recorder if needed.
+	 */
+	private static synchronized void listen() {
+		if (listening)
+			return;
+		listening = true;
+		try {
+			FlightRecorder.getFlightRecorder();
+			// Calls recorderInitialized right away, since Flight Recorder is initialized.
+			FlightRecorder.addListener(new FlightRecorderListener() {
+				@Override
+				public void recorderInitialized(FlightRecorder recorder) {
+					updateRecording();
+				}
+
+				@Override
+				public void recordingStateChanged(Recording changed) {
+					updateRecording();
+				}
+			});
+		} catch (LinkageError | SecurityException | IllegalStateException e) {
+			// Flight Recorder is not allowed; record no events.
+		}
+	}
+
+	private static synchronized void updateRecording() {
+		boolean running = false;
+		if (FlightRecorder.isInitialized())
+			for (Recording r : FlightRecorder.getFlightRecorder().getRecordings())
+				running |= r.getState() == RecordingState.RUNNING;
+		if (running && !registered) {
+			FlightRecorder.register(SpecCheck.class);
+			FlightRecorder.register(SpecFailure.class);
+			registered = true;
+		}
+		SpecEvents.running = running;
+		recording.setTarget(MethodHandles.constant(boolean.class, running));
+		MutableCallSite.syncAll(new MutableCallSite[] {recording});
+	}
+
+	/**
+	 * Given a spec method handle prepared by a spec site, returns a handle of the same type that, while a recording is running,
+	 * records the spec method's evaluation and failure, and wraps the postcondition it returns so that it records its own.
+	 */
+	static MethodHandle recording(MethodHandle spec, String specClassName, String specMethodName) {
+		if (!AVAILABLE || !SPEC_CHECKS)
+			return spec;
+		MethodType type = spec.type();
+		Class<?> postconditionType = type.returnType();
+		MethodHandle afterSpec;
+		try {
+			afterSpec = LOOKUP.findStatic(SpecEvents.class, "afterSpec", MethodType.methodType(postconditionType, postconditionType, SpecCheck.class));
+		} catch (NoSuchMethodException e) {
+			try {
+				afterSpec = LOOKUP.findStatic(SpecEvents.class, "afterSpec", MethodType.methodType(Object.class, Object.class, SpecCheck.class));
+			} catch (ReflectiveOperationException e2) {
+				throw new AssertionError(e2);
+			}
+		} catch (IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+		afterSpec = afterSpec.asType(MethodType.methodType(postconditionType, postconditionType, SpecCheck.class));
+		MethodHandle specFailed = SPEC_FAILED.asType(MethodType.methodType(postconditionType, Throwable.class, SpecCheck.class));
+		// (event, args...) -> postcondition
+		MethodHandle recordedSpec = MethodHandles.catchException(MethodHandles.dropArguments(spec, 0, SpecCheck.class), Throwable.class,
+				MethodHandles.dropArguments(specFailed, 2, type.parameterList()));
+		recordedSpec = MethodHandles.foldArguments(MethodHandles.dropArguments(afterSpec, 2, type.parameterList()), recordedSpec);
+		recordedSpec = MethodHandles.foldArguments(recordedSpec, MethodHandles.insertArguments(BEGIN, 0, specClassName, specMethodName, false));
+		return MethodHandles.guardWithTest(MethodHandles.dropArguments(recording.dynamicInvoker(), 0, type.parameterList()), recordedSpec, spec);
+	}
+
+	static SpecCheck begin(String specClassName, String specMethodName, boolean postcondition) {
+		SpecCheck event = new SpecCheck();
+		if (event.isEnabled()) {
+			event.specClass = specClassName;
+			event.specMethod = specMethodName;
+			event.postcondition = postcondition;
+			event.begin();
+		}
+		return event;
+	}
+
+	/** Spec failures are recorded where CodeSpecsRuntime and ViolationReporter name the failing spec method; see failed. */
+	static Object specFailed(Throwable t, SpecCheck event) throws Throwable {
+		event.commit();
+		throw t;
+	}
+
+	/**
+	 * Records a spec failure, if a recording enables spec failure events.
+	 */
+	static void failed(String specClassName, String specMethodName, boolean postcondition, String clause) {
+		if (!running) {
+			// Spec failures are rare, so catch up with recordings if something else has initialized Flight Recorder.
+			if (!FlightRecorder.isInitialized())
+				return;
+			listen();
+			if (!running)
+				return;
+		}
+		SpecFailure event = new SpecFailure();
+		if (event.isEnabled()) {
+			event.specClass = specClassName;
+			event.specMethod = specMethodName;
+			event.postcondition = postcondition;
+			event.clause = clause;
+			event.commit();
+		}
+	}
+
+	private static boolean afterSpecReturned(Object postcondition, SpecCheck event) {
+		event.commit();
+		return postcondition != null;
+	}
+
+	static Object afterSpec(Object postcondition, SpecCheck event) {
+		afterSpecReturned(postcondition, event);
+		return postcondition;
+	}
+
+	static Runnable afterSpec(Runnable postcondition, SpecCheck event) {
+		if (!afterSpecReturned(postcondition, event))
+			return null;
+		return () -> {
+			SpecCheck postconditionEvent = begin(event.specClass, event.specMethod, true);
+			try {
+				postcondition.run();
+			} finally {
+				postconditionEvent.commit();
+			}
+		};
+	}
+
+	static <T> Consumer<T> afterSpec(Consumer<T> postcondition, SpecCheck event) {
+		if (!afterSpecReturned(postcondition, event))
+			return null;
+		return result -> {
+			SpecCheck postconditionEvent = begin(event.specClass, event.specMethod, true);
+			try {
+				postcondition.accept(result);
+			} finally {
+				postconditionEvent.commit();
+			}
+		};
+	}
+
+	static IntConsumer afterSpec(IntConsumer postcondition, SpecCheck event) {
+		if (!afterSpecReturned(postcondition, event))
+			return null;
+		return result -> {
+			SpecCheck postconditionEvent = begin(event.specClass, event.specMethod, true);
+			try {
+				postcondition.accept(result);
+			} finally {
+				postconditionEvent.commit();
+			}
+		};
+	}
+
+	static LongConsumer afterSpec(LongConsumer postcondition, SpecCheck event) {
+		if (!afterSpecReturned(postcondition, event))
+			return null;
+		return result -> {
+			SpecCheck postconditionEvent = begin(event.specClass, event.specMethod, true);
+			try {
+				postcondition.accept(result);
+			} finally {
+				postconditionEvent.commit();
+			}
+		};
+	}
+
+	static DoubleConsumer afterSpec(DoubleConsumer postcondition, SpecCheck event) {
+		if (!afterSpecReturned(postcondition, event))
+			return null;
+		return result -> {
+			SpecCheck postconditionEvent = begin(event.specClass, event.specMethod, true);
+			try {
+				postcondition.accept(result);
+			} finally {
+				postconditionEvent.commit();
+			}
+		};
+	}
+
+	static BooleanConsumer afterSpec(BooleanConsumer postcondition, SpecCheck event) {
+		if (!afterSpecReturned(postcondition, event))
+			return null;
+		return result -> {
+			SpecCheck postconditionEvent = begin(event.specClass, event.specMethod, true);
+			try {
+				postcondition.accept(result);
+			} finally {
+				postconditionEvent.commit();
+			}
+		};
+	}
+}
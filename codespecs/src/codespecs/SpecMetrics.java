@@ -0,0 +1,44 @@
+package codespecs;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the counters kept for a spec method by woven code built with the metrics agent option.
+ */
+public final class SpecMetrics {
+	private final long invocations;
+	private final long preconditionFailures;
+	private final long postconditionFailures;
+	private final long specNanos;
+
+	@ConstructorProperties({"invocations", "preconditionFailures", "postconditionFailures", "specNanos"})
+	public SpecMetrics(long invocations, long preconditionFailures, long postconditionFailures, long specNanos) {
+		this.invocations = invocations;
+		this.preconditionFailures = preconditionFailures;
+		this.postconditionFailures = postconditionFailures;
+		this.specNanos = specNanos;
+	}
+
+	/** The number of calls for which the spec method was called. Calls skipped by sampling or while checks are disabled are not counted. */
+	public long getInvocations() {
+		return invocations;
+	}
+
+	public long getPreconditionFailures() {
+		return preconditionFailures;
+	}
+
+	public long getPostconditionFailures() {
+		return postconditionFailures;
+	}
+
+	/** The time spent in the spec method and in the postcondition it returned, in nanoseconds. */
+	public long getSpecNanos() {
+		return specNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "invocations=" + invocations + ", preconditionFailures=" + preconditionFailures + ", postconditionFailures=" + postconditionFailures + ", specNanos=" + specNanos;
+	}
+}
@@ -0,0 +1,68 @@
+package codespecs;
+
+/**
+ * A spec failure recorded in report mode (see CodeSpecs.setViolationSink) instead of being thrown.
+ */
+public final class Violation {
+	public enum Kind { PRECONDITION, POSTCONDITION }
+
+	private final Kind kind;
+	private final String specClassName;
+	private final String specMethodName;
+	private final String clause;
+	private final String receiverClassName;
+	private final String values;
+	private final long timeMillis;
+
+	Violation(Kind kind, String specClassName, String specMethodName, String clause, String receiverClassName, String values) {
+		this.kind = kind;
+		this.specClassName = specClassName;
+		this.specMethodName = specMethodName;
+		this.clause = clause;
+		this.receiverClassName = receiverClassName;
+		this.values = values;
+		this.timeMillis = System.currentTimeMillis();
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getSpecClassName() {
+		return specClassName;
+	}
+
+	public String getSpecMethodName() {
+		return specMethodName;
+	}
+
+	/** The clause that does not hold, as passed to requires, or null. */
+	public String getClause() {
+		return clause;
+	}
+
+	/** The name of the class of the receiver of the checked call, or null for a constructor precondition. */
+	public String getReceiverClassName() {
+		return receiverClassName;
+	}
+
+	/**
+	 * A summary of the arguments of the checked call for a precondition failure, or of its result for a postcondition failure.
+	 * Numbers, booleans, characters and short strings appear as such; other objects appear as their class names, since calling their toString methods
+	 * on the calling thread could be slow or have side effects.
+	 */
+	public String getValues() {
+		return values;
+	}
+
+	/** When the failure happened, in milliseconds since the epoch. */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	@Override
+	public String toString() {
+		return timeMillis + " " + kind + " " + specClassName + "." + specMethodName + (clause == null ? "" : ": " + clause)
+				+ (receiverClassName == null ? "" : " receiver " + receiverClassName) + " " + values;
+	}
+}
@@ -0,0 +1,29 @@
+package codespecs;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A ViolationSink that counts the violations per spec method.
+ */
+public final class ViolationCounter implements ViolationSink {
+	private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+	ViolationCounter() {}
+
+	@Override
+	public void report(Violation violation) {
+		counts.computeIfAbsent(violation.getSpecClassName() + "." + violation.getSpecMethodName(), k -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Returns the number of violations so far, keyed by spec method name (as in x.y.ZSpec.mSpec), in name order.
+	 */
+	public Map<String, Long> getCounts() {
+		Map<String, Long> snapshot = new TreeMap<>();
+		counts.forEach((specName, count) -> snapshot.put(specName, count.sum()));
+		return snapshot;
+	}
+}
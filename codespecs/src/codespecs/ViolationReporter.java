@@ -0,0 +1,261 @@
+package codespecs;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Report mode: spec sites record spec failures as Violations, and let the call proceed unchecked, instead of throwing.
+ *
+ * Violations go through a bounded ring buffer to a background thread, which passes them to the sink.
+ * An application thread claims a slot by advancing tail with a compare-and-set, and then publishes its violation into the slot;
+ * the background thread takes the violations in order, clears their slots and advances head. If the buffer is full,
+ * the violation is dropped and counted, so that application threads never wait for the sink.
+ * The background thread parks while the buffer is empty; the application thread whose violation makes it non-empty unparks it.
+ * Once the sink is cleared, the thread exits as soon as the buffer is empty; setting a sink again starts a new one.
+ */
+final class ViolationReporter {
+	private ViolationReporter() {}
+
+	private static final int CAPACITY = Integer.highestOneBit(Math.max(1, Integer.getInteger("codespecs.reportBufferSize", 1024) - 1) << 1);
+
+	private static final AtomicReferenceArray<Violation> slots = new AtomicReferenceArray<>(CAPACITY);
+	private static final AtomicLong tail = new AtomicLong();
+	private static volatile long head;
+	private static final LongAdder dropped = new LongAdder();
+	/** Null unless in report mode. */
+	private static volatile ViolationSink sink;
+	/** The background thread, or null if there is none; guarded by the ViolationReporter class. */
+	private static volatile Thread thread;
+
+	private static final MethodHandle PRECONDITION_FAILED;
+
+	static {
+		try {
+			PRECONDITION_FAILED = MethodHandles.lookup().findStatic(ViolationReporter.class, "preconditionFailed",
+					MethodType.methodType(Object.class, PreconditionFailureException.class, String.class, String.class, boolean.class, Object[].class));
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	static boolean isReporting() {
+		return sink != null;
+	}
+
+	static ViolationSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * Call only while holding the spec sites lock, and relink the spec sites afterwards.
+	 */
+	static synchronized void setSink(ViolationSink newSink) {
+		sink = newSink;
+		if (newSink != null && thread == null) {
+			thread = new Thread(ViolationReporter::drain, "codespecs-violation-reporter");
+			thread.setDaemon(true);
+			thread.start();
+		} else if (newSink == null && thread != null) {
+			LockSupport.unpark(thread); // So that it exits.
+		}
+	}
+
+	static long droppedCount() {
+		return dropped.sum();
+	}
+
+	static void offer(Violation violation) {
+		long t;
+		do {
+			t = tail.get();
+			if (t - head >= CAPACITY) {
+				dropped.increment();
+				return;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+		slots.lazySet((int)t & (CAPACITY - 1), violation);
+		if (t == head) { // The buffer was empty, so the background thread may be parked.
+			Thread drainer = thread;
+			if (drainer != null)
+				LockSupport.unpark(drainer);
+		}
+	}
+
+	private static void drain() {
+		long h = head;
+		for (;;) {
+			int index = (int)h & (CAPACITY - 1);
+			Violation violation = slots.get(index);
+			if (violation == null) {
+				if (tail.get() == h) {
+					if (sink == null && exitIfIdle(h))
+						return;
+					LockSupport.park();
+				} else {
+					Thread.yield(); // A producer has claimed the slot but not yet published its violation.
+				}
+				continue;
+			}
+			slots.lazySet(index, null);
+			head = ++h;
+			ViolationSink currentSink = sink;
+			if (currentSink == null)
+				continue; // Back in throw mode.
+			try {
+				currentSink.report(violation);
+			} catch (Exception e) {
+				System.err.println("codespecs: violation sink failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Called by the background thread once the sink is cleared and it has drained the buffer up to h.
+	 * Returns whether it should exit, which it should unless a sink was set again or a violation came in meanwhile.
+	 */
+	private static synchronized boolean exitIfIdle(long h) {
+		if (sink != null || tail.get() != h)
+			return false;
+		thread = null;
+		return true;
+	}
+
+	/**
+	 * Given a spec method handle prepared by a spec site, returns a handle of the same type that records precondition failures
+	 * and returns a null postcondition instead of throwing, and that wraps the postconditions it returns so that they record their failures.
+	 */
+	static MethodHandle reporting(MethodHandle spec, String specClassName, String specMethodName) {
+		MethodType type = spec.type();
+		Class<?> postconditionType = type.returnType();
+		boolean hasReceiver = !specMethodName.equals("constructorSpec");
+		MethodHandle preconditionFailed = MethodHandles.insertArguments(PRECONDITION_FAILED, 1, specClassName, specMethodName, hasReceiver)
+				.asCollector(Object[].class, type.parameterCount())
+				.asType(type.insertParameterTypes(0, PreconditionFailureException.class));
+		spec = MethodHandles.catchException(spec, PreconditionFailureException.class, preconditionFailed);
+		// (postcondition, arguments...) -> postcondition
+		MethodHandle wrap;
+		try {
+			wrap = MethodHandles.lookup().findStatic(ViolationReporter.class, "wrap", MethodType.methodType(postconditionType, postconditionType, String.class, String.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+		wrap = MethodHandles.insertArguments(wrap, 1, specClassName, specMethodName);
+		if (hasReceiver)
+			wrap = MethodHandles.dropArguments(wrap.asType(MethodType.methodType(postconditionType, postconditionType, type.parameterType(0))), 2, type.parameterList().subList(1, type.parameterCount()));
+		else
+			wrap = MethodHandles.dropArguments(MethodHandles.insertArguments(wrap, 1, (Object)null), 1, type.parameterList());
+		return MethodHandles.foldArguments(wrap, spec);
+	}
+
+	static Object preconditionFailed(PreconditionFailureException e, String specClassName, String specMethodName, boolean hasReceiver, Object[] arguments) {
+		String receiverClassName = hasReceiver && arguments[0] != null ? arguments[0].getClass().getName() : null;
+		StringBuilder values = new StringBuilder("(");
+		for (int i = 0; i < arguments.length; i++) {
+			if (i > 0)
+				values.append(", ");
+			values.append(summarize(arguments[i]));
+		}
+		offer(new Violation(Violation.Kind.PRECONDITION, specClassName, specMethodName, e.getClause(), receiverClassName, values.append(')').toString()));
+		return null;
+	}
+
+	static void postconditionFailed(PostconditionFailureException e, String specClassName, String specMethodName, Object receiver, String result) {
+		if (SpecEvents.AVAILABLE)
+			SpecEvents.failed(specClassName, specMethodName, true, e.getClause());
+		offer(new Violation(Violation.Kind.POSTCONDITION, specClassName, specMethodName, e.getClause(), receiver == null ? null : receiver.getClass().getName(), result));
+	}
+
+	static String summarize(Object value) {
+		if (value == null)
+			return "null";
+		if (value instanceof Number || value instanceof Boolean || value instanceof Character)
+			return value.toString();
+		if (value instanceof String) {
+			String s = (String)value;
+			return s.length() <= 40 ? '"' + s + '"' : '"' + s.substring(0, 40) + "...\"";
+		}
+		return value.getClass().getName();
+	}
+
+	static Runnable wrap(Runnable postcondition, String specClassName, String specMethodName, Object receiver) {
+		if (postcondition == null)
+			return null;
+		return () -> {
+			try {
+				postcondition.run();
+			} catch (PostconditionFailureException e) {
+				postconditionFailed(e, specClassName, specMethodName, receiver, "");
+			}
+		};
+	}
+
+	static Consumer<Object> wrap(Consumer<Object> postcondition, String specClassName, String specMethodName, Object receiver) {
+		if (postcondition == null)
+			return null;
+		return result -> {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				// A constructor postcondition takes the new object, which is its receiver.
+				postconditionFailed(e, specClassName, specMethodName, receiver == null ? result : receiver, "result " + summarize(result));
+			}
+		};
+	}
+
+	static IntConsumer wrap(IntConsumer postcondition, String specClassName, String specMethodName, Object receiver) {
+		if (postcondition == null)
+			return null;
+		return result -> {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				postconditionFailed(e, specClassName, specMethodName, receiver, "result " + result);
+			}
+		};
+	}
+
+	static LongConsumer wrap(LongConsumer postcondition, String specClassName, String specMethodName, Object receiver) {
+		if (postcondition == null)
+			return null;
+		return result -> {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				postconditionFailed(e, specClassName, specMethodName, receiver, "result " + result);
+			}
+		};
+	}
+
+	static DoubleConsumer wrap(DoubleConsumer postcondition, String specClassName, String specMethodName, Object receiver) {
+		if (postcondition == null)
+			return null;
+		return result -> {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				postconditionFailed(e, specClassName, specMethodName, receiver, "result " + result);
+			}
+		};
+	}
+
+	static BooleanConsumer wrap(BooleanConsumer postcondition, String specClassName, String specMethodName, Object receiver) {
+		if (postcondition == null)
+			return null;
+		return result -> {
+			try {
+				postcondition.accept(result);
+			} catch (PostconditionFailureException e) {
+				postconditionFailed(e, specClassName, specMethodName, receiver, "result " + result);
+			}
+		};
+	}
+}
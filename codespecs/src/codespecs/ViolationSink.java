@@ -0,0 +1,45 @@
+package codespecs;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Receives the violations recorded in report mode. See CodeSpecs.setViolationSink.
+ *
+ * A sink is called on a single background thread, one violation at a time, so it need not be thread-safe,
+ * and a slow sink delays no application thread; if it falls behind, violations are dropped instead.
+ */
+@FunctionalInterface
+public interface ViolationSink {
+	void report(Violation violation) throws Exception;
+
+	/**
+	 * Returns a sink that appends each violation as a line to the given file.
+	 */
+	static ViolationSink logFile(Path path) throws IOException {
+		Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		return violation -> {
+			writer.write(violation.toString());
+			writer.write(System.lineSeparator());
+			writer.flush();
+		};
+	}
+
+	/**
+	 * Returns a sink that sends each violation as a JMX notification of type codespecs.violation from bean codespecs:type=CodeSpecs.
+	 */
+	static ViolationSink jmxNotifications() {
+		return CodeSpecsRuntime.CONTROL::sendViolationNotification;
+	}
+
+	/**
+	 * Returns a sink that only counts the violations per spec method.
+	 */
+	static ViolationCounter counter() {
+		return new ViolationCounter();
+	}
+}
@@ -0,0 +1,69 @@
+package codespecsbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import accounts.Account;
+import accounts.QEAccount;
+
+/**
+ * Measures the cost of calling methods with specs. Run through the bench targets in build.xml,
+ * which run it without the agent, with the agent, with sampling and with checks disabled.
+ *
+ * The amount is zero so that the balance stays the same however many times a benchmark runs; the specs are checked all the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountBenchmark {
+	int initialBalance = 100;
+	int amount = 0;
+	Account account;
+	/** A QEAccount seen as an Account, so that calls go through Account's caller-side wrapper and QEAccount's refined spec. */
+	Account qeAccount;
+
+	@Setup
+	public void setup() {
+		account = new Account(initialBalance);
+		qeAccount = new QEAccount();
+	}
+
+	@Benchmark
+	public Account constructor() {
+		return new Account(initialBalance);
+	}
+
+	@Benchmark
+	public int getBalance() {
+		return account.getBalance();
+	}
+
+	@Benchmark
+	public Account deposit() {
+		account.deposit(amount);
+		return account;
+	}
+
+	@Benchmark
+	public boolean withdraw() {
+		return account.withdraw(amount);
+	}
+
+	@Benchmark
+	public boolean qeWithdrawThroughAccount() {
+		return qeAccount.withdraw(amount);
+	}
+}
@@ -0,0 +1,141 @@
+package codespecsbench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to load a corpus of generated classes through a fresh class loader,
+ * which is what the agent slows down at startup. Run with the agent's timing option to see where the weaver spends its time.
+ *
+ * In each group of four classes, the first has @SeeCodeSpecs and a spec class, the second calls it,
+ * and the other two neither have specs nor call methods that do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ClassLoadBenchmark implements Opcodes {
+	@Param("4000")
+	int classCount;
+
+	Map<String, byte[]> classFiles;
+
+	static class CorpusClassLoader extends ClassLoader {
+		final Map<String, byte[]> classFiles;
+
+		CorpusClassLoader(Map<String, byte[]> classFiles) {
+			super(ClassLoadBenchmark.class.getClassLoader());
+			this.classFiles = classFiles;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classFiles.get(name.replace('.', '/') + ".class");
+			if (bytes == null)
+				throw new ClassNotFoundException(name);
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+
+		@Override
+		public InputStream getResourceAsStream(String name) {
+			byte[] bytes = classFiles.get(name);
+			return bytes != null ? new ByteArrayInputStream(bytes) : super.getResourceAsStream(name);
+		}
+	}
+
+	@Setup
+	public void generateCorpus() {
+		classFiles = new HashMap<>();
+		for (int i = 0; i < classCount; i++) {
+			String name = "corpus/C" + i;
+			switch (i % 4) {
+			case 0:
+				classFiles.put(name + ".class", generateClass(name, true, null));
+				classFiles.put(name + "Spec.class", generateSpecClass(name));
+				break;
+			case 1:
+				classFiles.put(name + ".class", generateClass(name, false, "corpus/C" + (i - 1)));
+				break;
+			default:
+				classFiles.put(name + ".class", generateClass(name, false, null));
+			}
+		}
+	}
+
+	/**
+	 * Generates a class with an instance method int m(int). If callee is not null, m calls callee's m.
+	 */
+	static byte[] generateClass(String name, boolean hasSpecs, String callee) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, name, null, "java/lang/Object", null);
+		if (hasSpecs)
+			cw.visitAnnotation("Lcodespecs/SeeCodeSpecs;", false).visitEnd();
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		mv = cw.visitMethod(ACC_PUBLIC, "m", "(I)I", null, null);
+		mv.visitCode();
+		if (callee != null) {
+			mv.visitTypeInsn(NEW, callee);
+			mv.visitInsn(DUP);
+			mv.visitMethodInsn(INVOKESPECIAL, callee, "<init>", "()V", false);
+			mv.visitVarInsn(ILOAD, 1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, callee, "m", "(I)I", false);
+		} else {
+			mv.visitVarInsn(ILOAD, 1);
+		}
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Generates the spec class for a class generated by generateClass, with a spec for m that requires nothing and ensures nothing.
+	 */
+	static byte[] generateSpecClass(String name) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, name + "Spec", null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "mSpec", "(L" + name + ";I)Ljava/util/function/IntConsumer;", null, null);
+		mv.visitCode();
+		mv.visitInsn(ACONST_NULL);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	@Benchmark
+	public ClassLoader loadCorpus() throws ClassNotFoundException {
+		ClassLoader loader = new CorpusClassLoader(classFiles);
+		for (int i = 0; i < classCount; i++)
+			Class.forName("corpus.C" + i, false, loader);
+		return loader;
+	}
+}
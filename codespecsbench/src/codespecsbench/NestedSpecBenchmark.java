@@ -0,0 +1,51 @@
+package codespecsbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import codespecsbench.ledger.Ledger;
+
+/**
+ * Measures calls of methods whose specs call other methods with specs. With nested checks, as with -Dcodespecs.nestedChecks=true,
+ * a call of set checks total's spec, which checks get's and size's specs for each entry, so the cost grows with the square of the size;
+ * without, it grows linearly, as the cost of evaluating set's spec itself does. ant bench_nested runs it both ways.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestedSpecBenchmark {
+	@Param({"4", "16", "64"})
+	int size;
+	int amount = 0;
+	Ledger ledger;
+
+	@Setup
+	public void setup() {
+		ledger = new Ledger(size);
+	}
+
+	@Benchmark
+	public int total() {
+		return ledger.total();
+	}
+
+	@Benchmark
+	public Ledger set() {
+		ledger.set(size / 2, amount);
+		return ledger;
+	}
+}
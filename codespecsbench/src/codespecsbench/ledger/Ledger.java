@@ -0,0 +1,35 @@
+package codespecsbench.ledger;
+
+import codespecs.SeeCodeSpecs;
+
+/**
+ * A fixed-size list of amounts whose specs call each other's methods, so that a checked call that checked nested calls too
+ * would fan out into one check per entry and more.
+ */
+@SeeCodeSpecs
+public class Ledger {
+	private final int[] entries;
+
+	public Ledger(int size) {
+		entries = new int[size];
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	public int get(int index) {
+		return entries[index];
+	}
+
+	public void set(int index, int amount) {
+		entries[index] = amount;
+	}
+
+	public int total() {
+		int total = 0;
+		for (int entry : entries)
+			total += entry;
+		return total;
+	}
+}
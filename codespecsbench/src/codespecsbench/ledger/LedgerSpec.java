@@ -0,0 +1,38 @@
+package codespecsbench.ledger;
+
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import static codespecs.CodeSpecs.*;
+
+public class LedgerSpec {
+	public static Consumer<Ledger> constructorSpec(int size) {
+		requires(0 <= size);
+		return ensures(self -> self.size() == size && self.total() == 0);
+	}
+
+	public static IntConsumer sizeSpec(Ledger self) {
+		return ensuresInt(result -> 0 <= result);
+	}
+
+	public static IntConsumer getSpec(Ledger self, int index) {
+		requires(0 <= index && index < self.size());
+		return null; // No postcondition.
+	}
+
+	public static IntConsumer totalSpec(Ledger self) {
+		return ensuresInt(result -> {
+			int total = 0;
+			for (int i = 0; i < self.size(); i++)
+				total += self.get(i);
+			return result == total;
+		});
+	}
+
+	public static Runnable setSpec(Ledger self, int index, int amount) {
+		requires(0 <= index && index < self.size());
+		int oldTotal = self.total();
+		int oldAmount = self.get(index);
+		return ensures(() -> self.get(index) == amount && self.total() == oldTotal - oldAmount + amount);
+	}
+}
@@ -0,0 +1,19 @@
+package accounts;
+
+import codespecs.SeeCodeSpecs;
+
+/**
+ * Its name starts with Account's, but scope pattern accounts.Account does not match it.
+ */
+@SeeCodeSpecs
+public class AccountBook {
+	private final int pages;
+	
+	public AccountBook(int pages) {
+		this.pages = pages;
+	}
+	
+	public int getPages() {
+		return pages;
+	}
+}
@@ -0,0 +1,12 @@
+package accounts;
+
+import java.util.function.Consumer;
+
+import static codespecs.CodeSpecs.*;
+
+public class AccountBookSpec {
+	public static Consumer<AccountBook> constructorSpec(int pages) {
+		requires(0 <= pages);
+		return ensures(self -> self.getPages() == pages);
+	}
+}
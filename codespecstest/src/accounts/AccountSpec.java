@@ -1,25 +1,31 @@
 package accounts;
 
 import java.util.function.Consumer;
-import java.util.function.Predicate;
+import java.util.function.IntConsumer;
 
 import static codespecs.CodeSpecs.*;
 
+import codespecs.BooleanConsumer;
+
 public class AccountSpec {
 	public static Consumer<Account> constructorSpec(int initialBalance) {
 		requires(0 <= initialBalance);
 		return ensures(self -> self.getBalance() == initialBalance);
 	}
 	
+	public static IntConsumer getBalanceSpec(Account self) {
+		return ensuresInt(result -> 0 <= result);
+	}
+	
 	public static Runnable depositSpec(Account self, int amount) {
-		requires(0 <= amount);
+		requires(0 <= amount, "0 <= amount");
 		int oldBalance = self.getBalance();
 		return ensures(() -> self.getBalance() == oldBalance + amount);
 	}
 	
-	public static Consumer<Boolean> withdrawSpec(Account self, int amount) {
+	public static BooleanConsumer withdrawSpec(Account self, int amount) {
 		requires(0 <= amount && self.getBalance() >= amount);
 		int oldBalance = self.getBalance();
-		return ensures(result -> self.getBalance() == oldBalance - amount && result == true);
+		return ensuresBoolean(result -> self.getBalance() == oldBalance - amount && result == true);
 	}
 }
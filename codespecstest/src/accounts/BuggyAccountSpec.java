@@ -13,7 +13,7 @@ public class BuggyAccountSpec {
 	public static Runnable depositSpec(BuggyAccount self, int amount) {
 		requires(0 <= amount);
 		int oldBalance = self.getBalance();
-		return ensures(() -> self.getBalance() == oldBalance + amount);
+		return ensures(() -> self.getBalance() == oldBalance + amount, "getBalance() == old(getBalance()) + amount");
 	}
 	
 	public static Consumer<Boolean> withdrawSpec(BuggyAccount self, int amount) {
@@ -0,0 +1,15 @@
+package accounts;
+
+import codespecs.SeeCodeSpecs;
+
+/**
+ * A vault whose store method is a default method, which checks the spec of Vault.store itself.
+ */
+@SeeCodeSpecs
+public interface DefaultVault extends Vault {
+	void setContents(int contents);
+	
+	default void store(int amount) {
+		setContents(getContents() + amount);
+	}
+}
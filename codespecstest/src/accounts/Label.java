@@ -0,0 +1,21 @@
+package accounts;
+
+import codespecs.SeeCodeSpecs;
+
+/**
+ * Mentions the name of the attribute that marks woven classes, which must not keep the class from being woven.
+ */
+@SeeCodeSpecs
+public class Label {
+	public static final String WOVEN_ATTRIBUTE = "CodeSpecsWoven";
+	
+	private final String text;
+	
+	public Label(String text) {
+		this.text = text;
+	}
+	
+	public String getText() {
+		return text;
+	}
+}
@@ -0,0 +1,17 @@
+package accounts;
+
+import java.util.function.Consumer;
+
+import static codespecs.CodeSpecs.*;
+
+public class LabelSpec {
+	static {
+		// Tells the tests that the spec was called rather than inlined; reading a field would initialize the class.
+		System.setProperty("accounts.LabelSpec.initialized", "true");
+	}
+	
+	public static Consumer<Label> constructorSpec(String text) {
+		requires(text != null);
+		return ensures(self -> self.getText() == text);
+	}
+}
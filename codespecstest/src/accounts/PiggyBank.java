@@ -0,0 +1,16 @@
+package accounts;
+
+import codespecs.SeeCodeSpecs;
+
+@SeeCodeSpecs
+public class PiggyBank implements DefaultVault {
+	private int contents;
+	
+	public int getContents() {
+		return contents;
+	}
+	
+	public void setContents(int contents) {
+		this.contents = contents;
+	}
+}
@@ -0,0 +1,16 @@
+package accounts;
+
+import codespecs.SeeCodeSpecs;
+
+@SeeCodeSpecs
+public class SimpleVault implements Vault {
+	private int contents;
+	
+	public int getContents() {
+		return contents;
+	}
+	
+	public void store(int amount) {
+		contents += amount;
+	}
+}
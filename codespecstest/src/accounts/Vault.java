@@ -0,0 +1,10 @@
+package accounts;
+
+import codespecs.SeeCodeSpecs;
+
+@SeeCodeSpecs
+public interface Vault {
+	int getContents();
+	
+	void store(int amount);
+}
@@ -0,0 +1,11 @@
+package accounts;
+
+import static codespecs.CodeSpecs.*;
+
+public class VaultSpec {
+	public static Runnable storeSpec(Vault self, int amount) {
+		requires(0 < amount);
+		int oldContents = self.getContents();
+		return ensures(() -> self.getContents() == oldContents + amount);
+	}
+}
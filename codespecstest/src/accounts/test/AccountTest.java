@@ -3,11 +3,21 @@ package accounts.test;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.util.Map;
+
+import codespecs.CodeSpecs;
 import codespecs.PostconditionFailureException;
 import codespecs.PreconditionFailureException;
+import codespecs.ViolationCounter;
+import codespecs.ViolationSink;
 import accounts.Account;
 import accounts.BuggyAccount;
+import accounts.Label;
+import accounts.PiggyBank;
 import accounts.QEAccount;
+import accounts.SimpleVault;
+import accounts.Vault;
+import accounts.wallets.Wallet;
 
 public class AccountTest {
 
@@ -35,6 +45,18 @@ public class AccountTest {
 		assertEquals(2, a1.getBalance());
 	}
 	
+	@Test
+	public void testSpecsInlined() {
+		assertEquals("label", new Label("label").getText());
+		try {
+			new Label(null);
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+		// The inline_test target sets codespecs.test.inlineSpecs; then LabelSpec is inlined, and the class is never initialized.
+		assertEquals(!Boolean.getBoolean("codespecs.test.inlineSpecs"), Boolean.getBoolean("accounts.LabelSpec.initialized"));
+	}
+	
 	@Test
 	public void testBuggyAccount() {
 		try {
@@ -71,6 +93,12 @@ public class AccountTest {
 		} catch (PreconditionFailureException e) {
 		}
 		
+		try {
+			a1.withdraw(-1); // Weaving pushes withdraw past MaxInlineSize, so its body is moved out; the check stays.
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+		
 		a1.deposit(10);
 		assertEquals(true, a1.withdraw(20)); // Would not be allowed by superclass spec.
 		assertEquals(10, a1.getBalance());
@@ -86,5 +114,174 @@ public class AccountTest {
 		} catch (PreconditionFailureException e) {
 		}
 	}
+	
+	@Test
+	public void testChecksCanBeDisabled() {
+		CodeSpecs.setChecksEnabled(false);
+		try {
+			Account a1 = new Account(-10);
+			a1.deposit(-10);
+			assertEquals(-20, a1.getBalance());
+			new BuggyAccount(0).deposit(10);
+		} finally {
+			CodeSpecs.setChecksEnabled(true);
+		}
+		try {
+			new Account(-10);
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+	}
+	
+	@Test
+	public void testSpecsDoNotCheckNestedCalls() {
+		CodeSpecs.setChecksEnabled(false);
+		Account a1;
+		try {
+			a1 = new Account(-10);
+		} finally {
+			CodeSpecs.setChecksEnabled(true);
+		}
+		a1.deposit(5); // depositSpec calls getBalance, whose spec does not hold, without checking it.
+		try {
+			a1.getBalance();
+			fail();
+		} catch (PostconditionFailureException e) {
+		}
+	}
+	
+	@Test
+	public void testFailureNamesSpec() {
+		try {
+			new Account(0).deposit(-10);
+			fail();
+		} catch (PreconditionFailureException e) {
+			assertEquals("0 <= amount", e.getClause());
+			assertEquals("accounts.AccountSpec", e.getSpecClassName());
+			assertEquals("depositSpec", e.getSpecMethodName());
+		}
+		try {
+			new BuggyAccount(0).deposit(10);
+			fail();
+		} catch (PostconditionFailureException e) {
+			assertEquals("getBalance() == old(getBalance()) + amount", e.getClause());
+			assertEquals("accounts.BuggyAccountSpec", e.getSpecClassName());
+			assertEquals("depositSpec", e.getSpecMethodName());
+			e.addSuppressed(new IllegalStateException()); // As try-with-resources does when closing fails.
+			assertEquals(1, e.getSuppressed().length);
+		}
+	}
+	
+	@Test
+	public void testClassMentioningWovenAttributeIsWoven() {
+		try {
+			new Label(null);
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+	}
+	
+	@Test
+	public void testPackageSpecs() {
+		try {
+			new Wallet(-1);
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+		Wallet w = new Wallet(10);
+		w.spend(4);
+		try {
+			w.spend(7);
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+		assertEquals(6, w.getCash());
+	}
+	
+	@Test
+	public void testInterfaceSpecs() {
+		Vault v = new SimpleVault();
+		v.store(5);
+		try {
+			v.store(0); // Checked at the call through the interface.
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+		SimpleVault sv = new SimpleVault();
+		try {
+			sv.store(-1); // SimpleVault inherits the spec of Vault.
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+		assertEquals(5, v.getContents());
+		PiggyBank pb = new PiggyBank();
+		try {
+			pb.store(0); // The default method DefaultVault.store checks the spec of Vault.
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+	}
+	
+	private static boolean reporterThreadRunning() {
+		return Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals("codespecs-violation-reporter"));
+	}
+	
+	/**
+	 * Returns the violations reported while running the given calls in report mode, per spec method.
+	 */
+	private static Map<String, Long> reportedViolations(Runnable calls) throws InterruptedException {
+		ViolationCounter counter = ViolationSink.counter();
+		CodeSpecs.setViolationSink(counter);
+		try {
+			calls.run();
+			new BuggyAccount(0).deposit(10); // Violations are reported in order, so once this one is in, so are the others.
+			for (int i = 0; i < 500 && !counter.getCounts().containsKey("accounts.BuggyAccountSpec.depositSpec"); i++)
+				Thread.sleep(10);
+		} finally {
+			CodeSpecs.setViolationSink(null);
+		}
+		return counter.getCounts();
+	}
+	
+	@Test
+	public void testWrapperChecksSpecOnce() throws InterruptedException {
+		Account account = new Account(0);
+		// The receiver's class is exactly Account, so the wrapper leaves the check to the prologue of Account.deposit.
+		assertEquals(Long.valueOf(1), reportedViolations(() -> account.deposit(-10)).get("accounts.AccountSpec.depositSpec"));
+		Account subclassAccount = new QEAccount();
+		// Otherwise the wrapper checks the spec the caller was written against; QEAccount inherits deposit, whose prologue checks it again.
+		assertEquals(Long.valueOf(2), reportedViolations(() -> subclassAccount.deposit(-10)).get("accounts.AccountSpec.depositSpec"));
+	}
+	
+	@Test
+	public void testReportMode() throws InterruptedException {
+		ViolationCounter counter = ViolationSink.counter();
+		CodeSpecs.setViolationSink(counter);
+		try {
+			Account a1 = new Account(0);
+			a1.deposit(-10); // Reported, not thrown.
+			assertEquals(-10, a1.getBalance());
+			Vault v = new SimpleVault();
+			v.store(0); // Checked by SimpleVault.store, and so not at the call through the interface.
+			Vault pb = new PiggyBank();
+			pb.store(0); // Likewise checked by the default method DefaultVault.store only.
+			new BuggyAccount(0).deposit(10);
+			for (int i = 0; i < 500 && !counter.getCounts().containsKey("accounts.BuggyAccountSpec.depositSpec"); i++) // Violations are reported in order.
+				Thread.sleep(10);
+			assertEquals(Long.valueOf(1), counter.getCounts().get("accounts.AccountSpec.depositSpec"));
+			assertTrue(counter.getCounts().containsKey("accounts.BuggyAccountSpec.depositSpec"));
+			assertEquals(Long.valueOf(2), counter.getCounts().get("accounts.VaultSpec.storeSpec"));
+		} finally {
+			CodeSpecs.setViolationSink(null);
+		}
+		try {
+			new Account(0).deposit(-10);
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+		for (int i = 0; i < 500 && reporterThreadRunning(); i++) // The reporter thread exits once the sink is cleared.
+			Thread.sleep(10);
+		assertFalse(reporterThreadRunning());
+	}
 
 }
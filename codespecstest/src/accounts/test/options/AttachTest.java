@@ -0,0 +1,58 @@
+package accounts.test.options;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import codespecs.PostconditionFailureException;
+import codespecs.PreconditionFailureException;
+import accounts.Account;
+import accounts.BuggyAccount;
+import accounts.SimpleVault;
+import accounts.Vault;
+
+/**
+ * Run by the attach_test target without the agent, with codespecsweaver.jar, and tools.jar where the JDK has one, on the class path.
+ * Attaches the agent to the test's own JVM, and then unweaves.
+ */
+public class AttachTest {
+
+	private static void attach(String options) throws Exception {
+		String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+		Class.forName("codespecsweaver.Attach").getMethod("main", String[].class).invoke(null, (Object)new String[] {pid, options});
+	}
+
+	private static void assertChecked(boolean checked, Account account, Vault vault) {
+		try {
+			account.deposit(-1);
+			assertFalse(checked);
+		} catch (PreconditionFailureException e) {
+			assertTrue(checked);
+		}
+		try {
+			vault.store(0); // Checked at the call through the interface.
+			assertFalse(checked);
+		} catch (PreconditionFailureException e) {
+			assertTrue(checked);
+		}
+		try {
+			new BuggyAccount(0).deposit(10);
+			assertFalse(checked);
+		} catch (PostconditionFailureException e) {
+			assertTrue(checked);
+		}
+	}
+
+	@Test
+	public void testAttachAndUnweave() throws Exception {
+		Account account = new Account(0);
+		Vault vault = new SimpleVault();
+		assertChecked(false, account, vault);
+		attach("batchSize=3,batchPause=1");
+		assertChecked(true, account, vault);
+		attach("unweave");
+		assertChecked(false, account, vault);
+	}
+
+}
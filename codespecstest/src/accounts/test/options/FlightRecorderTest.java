@@ -0,0 +1,63 @@
+package accounts.test.options;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import codespecs.PostconditionFailureException;
+import codespecs.PreconditionFailureException;
+import accounts.Account;
+import accounts.BuggyAccount;
+
+/**
+ * Run by the flight_recorder_test target with and without system property codespecs.flightRecorder, and with agent option inlineSpecs.
+ */
+public class FlightRecorderTest {
+
+	@Test
+	public void testFlightRecorderEvents() throws IOException {
+		Path file = Files.createTempFile("codespecs", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("codespecs.SpecFailure");
+			recording.enable("codespecs.SpecCheck");
+			recording.start();
+			try {
+				new Account(0).deposit(-10);
+				fail();
+			} catch (PreconditionFailureException e) {
+			}
+			try {
+				new BuggyAccount(0).deposit(10);
+				fail();
+			} catch (PostconditionFailureException e) {
+			}
+			recording.stop();
+			recording.dump(file);
+			boolean preconditionFailure = false;
+			boolean postconditionFailure = false;
+			boolean specCheck = false;
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				String name = event.getEventType().getName();
+				preconditionFailure |= name.equals("codespecs.SpecFailure") && "0 <= amount".equals(event.getString("clause"))
+						&& "depositSpec".equals(event.getString("specMethod"));
+				postconditionFailure |= name.equals("codespecs.SpecFailure") && event.getBoolean("postcondition")
+						&& "accounts.BuggyAccountSpec".equals(event.getString("specClass"));
+				specCheck |= name.equals("codespecs.SpecCheck");
+			}
+			assertTrue(preconditionFailure);
+			assertTrue(postconditionFailure);
+			// Spec sites record spec checks only with -Dcodespecs.flightRecorder=true; inlined specs never do.
+			assertEquals(Boolean.getBoolean("codespecs.flightRecorder"), specCheck);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package accounts.test.options;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import codespecs.CodeSpecs;
+import codespecs.PreconditionFailureException;
+
+/**
+ * Run by the lazy_test target, with agent option lazySpecs if system property codespecs.test.lazySpecs is true, and without it otherwise.
+ */
+public class LazySpecsTest {
+
+	/** Defines Label and LabelSpec itself rather than asking its parent, and records which of them it has defined. */
+	static class LabelLoader extends ClassLoader {
+		final Set<String> defined = ConcurrentHashMap.newKeySet();
+
+		LabelLoader() {
+			super(LazySpecsTest.class.getClassLoader());
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!name.equals("accounts.Label") && !name.equals("accounts.LabelSpec"))
+				return super.loadClass(name, resolve);
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null) {
+					try (InputStream is = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						byte[] buffer = new byte[8192];
+						for (int n; (n = is.read(buffer)) > 0; )
+							bytes.write(buffer, 0, n);
+						c = defineClass(name, bytes.toByteArray(), 0, bytes.size());
+					} catch (IOException e) {
+						throw new ClassNotFoundException(name, e);
+					}
+					defined.add(name);
+				}
+				return c;
+			}
+		}
+	}
+
+	@Test
+	public void testSpecClassLoadsAtFirstCheck() throws ReflectiveOperationException {
+		boolean lazy = Boolean.getBoolean("codespecs.test.lazySpecs");
+		LabelLoader loader = new LabelLoader();
+		Constructor<?> constructor = Class.forName("accounts.Label", true, loader).getConstructor(String.class);
+		CodeSpecs.setChecksEnabled(false);
+		try {
+			constructor.newInstance((Object)null); // Runs the spec site, but checks nothing.
+		} finally {
+			CodeSpecs.setChecksEnabled(true);
+		}
+		assertEquals(!lazy, loader.defined.contains("accounts.LabelSpec"));
+		try {
+			constructor.newInstance((Object)null);
+			fail();
+		} catch (InvocationTargetException e) {
+			assertTrue(e.getCause() instanceof PreconditionFailureException);
+		}
+		assertTrue(loader.defined.contains("accounts.LabelSpec"));
+	}
+
+}
@@ -0,0 +1,47 @@
+package accounts.test.options;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import codespecs.CodeSpecs;
+import codespecs.PostconditionFailureException;
+import codespecs.PreconditionFailureException;
+import codespecs.SpecMetrics;
+import accounts.Account;
+import accounts.BuggyAccount;
+
+/**
+ * Run by the metrics_test target with agent option metrics.
+ */
+public class MetricsTest {
+
+	@Test
+	public void testMetrics() {
+		CodeSpecs.resetMetrics();
+		Account account = new Account(0);
+		account.deposit(1);
+		account.deposit(2);
+		try {
+			account.deposit(-1);
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+		BuggyAccount buggy = new BuggyAccount(0);
+		try {
+			buggy.deposit(10);
+			fail();
+		} catch (PostconditionFailureException e) {
+		}
+		SpecMetrics deposit = CodeSpecs.metricsSnapshot().get("accounts.AccountSpec.depositSpec");
+		assertEquals(3, deposit.getInvocations());
+		assertEquals(1, deposit.getPreconditionFailures());
+		assertEquals(0, deposit.getPostconditionFailures());
+		SpecMetrics buggyDeposit = CodeSpecs.metricsSnapshot().get("accounts.BuggyAccountSpec.depositSpec");
+		assertEquals(1, buggyDeposit.getInvocations());
+		assertEquals(0, buggyDeposit.getPreconditionFailures());
+		assertEquals(1, buggyDeposit.getPostconditionFailures());
+		CodeSpecs.resetMetrics();
+		assertEquals(0, CodeSpecs.metricsSnapshot().get("accounts.AccountSpec.depositSpec").getInvocations());
+	}
+
+}
@@ -0,0 +1,37 @@
+package accounts.test.options;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import codespecs.PreconditionFailureException;
+import accounts.Account;
+
+/**
+ * Run by the sample_test target with agent option sample=accounts.Account.deposit:N, where N is system property codespecs.test.samplingRate.
+ */
+public class SamplingTest {
+
+	@Test
+	public void testSampling() {
+		int rate = Integer.getInteger("codespecs.test.samplingRate");
+		Account account = new Account(0);
+		int checked = 0;
+		for (int i = 0; i < 100; i++) {
+			try {
+				account.deposit(-1);
+			} catch (PreconditionFailureException e) {
+				checked++;
+			}
+		}
+		if (rate == 1)
+			assertEquals(100, checked);
+		else
+			assertEquals(0, checked); // About one in a billion calls is checked.
+		try {
+			account.withdraw(-1); // Not sampled.
+			fail();
+		} catch (PreconditionFailureException e) {
+		}
+	}
+
+}
@@ -0,0 +1,14 @@
+package accounts.test.options;
+
+import accounts.Account;
+
+/**
+ * Loaded by ScopeTest's CallerLoader, whose class loader is in scope while that of Account is not.
+ */
+public class ScopeCaller {
+
+	public static void deposit(Account account, int amount) {
+		account.deposit(amount);
+	}
+
+}
@@ -0,0 +1,80 @@
+package accounts.test.options;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+
+import codespecs.PreconditionFailureException;
+import accounts.Account;
+import accounts.AccountBook;
+import accounts.wallets.Wallet;
+
+/**
+ * Run by the scope_test target with the agent option named by system property codespecs.test.scope:
+ * include=accounts.wallets.*, exclude=accounts.Account, or includeLoader=accounts.test.options.*.
+ */
+public class ScopeTest {
+
+	/** Defines ScopeCaller itself rather than asking its parent, which defines the other classes. */
+	static class CallerLoader extends ClassLoader {
+		CallerLoader() {
+			super(ScopeTest.class.getClassLoader());
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!name.equals(ScopeTest.class.getPackage().getName() + ".ScopeCaller"))
+				return super.loadClass(name, resolve);
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null) {
+					try (InputStream is = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						byte[] buffer = new byte[8192];
+						for (int n; (n = is.read(buffer)) > 0; )
+							bytes.write(buffer, 0, n);
+						c = defineClass(name, bytes.toByteArray(), 0, bytes.size());
+					} catch (IOException e) {
+						throw new ClassNotFoundException(name, e);
+					}
+				}
+				return c;
+			}
+		}
+	}
+
+	private static boolean throwsPreconditionFailure(Runnable r) {
+		try {
+			r.run();
+			return false;
+		} catch (PreconditionFailureException e) {
+			return true;
+		}
+	}
+
+	@Test
+	public void testScope() throws ReflectiveOperationException {
+		String scope = System.getProperty("codespecs.test.scope");
+		assertTrue(scope, scope.equals("include") || scope.equals("exclude") || scope.equals("includeLoader"));
+		// Account is out of scope in each case; Wallet is in scope unless the weaver weaves only the classes of CallerLoader.
+		assertFalse(throwsPreconditionFailure(() -> new Account(-1)));
+		assertFalse(throwsPreconditionFailure(() -> new Account(0).deposit(-1)));
+		assertEquals(!scope.equals("includeLoader"), throwsPreconditionFailure(() -> new Wallet(-1)));
+		// A pattern without * matches up to a boundary only, so exclude=accounts.Account leaves AccountBook in scope.
+		assertEquals(scope.equals("exclude"), throwsPreconditionFailure(() -> new AccountBook(-1)));
+		// A woven caller of a method with specs whose class loader is out of scope checks the spec at the call site.
+		Class<?> caller = Class.forName(ScopeTest.class.getPackage().getName() + ".ScopeCaller", true, new CallerLoader());
+		try {
+			caller.getMethod("deposit", Account.class, int.class).invoke(null, new Account(0), -1);
+			assertFalse(scope.equals("includeLoader"));
+		} catch (InvocationTargetException e) {
+			assertTrue(e.getCause() instanceof PreconditionFailureException);
+			assertTrue(scope.equals("includeLoader"));
+		}
+	}
+
+}
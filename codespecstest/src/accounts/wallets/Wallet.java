@@ -0,0 +1,17 @@
+package accounts.wallets;
+
+public class Wallet {
+	private int cash;
+	
+	public Wallet(int cash) {
+		this.cash = cash;
+	}
+	
+	public int getCash() {
+		return cash;
+	}
+	
+	public void spend(int amount) {
+		cash -= amount;
+	}
+}
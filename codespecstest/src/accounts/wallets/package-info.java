@@ -0,0 +1,4 @@
+@SeeCodeSpecs
+package accounts.wallets;
+
+import codespecs.SeeCodeSpecs;
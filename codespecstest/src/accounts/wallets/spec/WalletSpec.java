@@ -0,0 +1,20 @@
+package accounts.wallets.spec;
+
+import static codespecs.CodeSpecs.*;
+
+import java.util.function.Consumer;
+
+import accounts.wallets.Wallet;
+
+public class WalletSpec {
+	public static Consumer<Wallet> constructorSpec(int cash) {
+		requires(0 <= cash);
+		return ensures(self -> self.getCash() == cash);
+	}
+	
+	public static Runnable spendSpec(Wallet self, int amount) {
+		requires(0 <= amount && amount <= self.getCash());
+		int oldCash = self.getCash();
+		return ensures(() -> self.getCash() == oldCash - amount);
+	}
+}
@@ -0,0 +1,37 @@
+package codespecstester;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import codespecs.CodeSpecsException;
+
+/**
+ * A failure found by a sequence. Failures of the same operation with the same exception class, spec method and clause, thrown from the same place,
+ * count as one, which keeps the sequence that found it first. The place is the top stack frame outside codespecs, which for a spec failure is
+ * the failing requires or ensures call in the spec; without stack traces, the exception message stands in for it.
+ */
+class Failure {
+	final Operation operation;
+	final Throwable exception;
+	/** The seed of the sequence that found the failure first. */
+	final long seed;
+	final LongAdder count = new LongAdder();
+
+	Failure(Operation operation, Throwable exception, long seed) {
+		this.operation = operation;
+		this.exception = exception;
+		this.seed = seed;
+	}
+
+	String key() {
+		String key = operation + ": " + exception.getClass().getName();
+		if (exception instanceof CodeSpecsException) {
+			CodeSpecsException e = (CodeSpecsException)exception;
+			key += " " + e.getSpecClassName() + "." + e.getSpecMethodName() + " " + e.getClause();
+		}
+		for (StackTraceElement frame : exception.getStackTrace()) {
+			if (!frame.getClassName().startsWith("codespecs.") && !frame.getClassName().startsWith("java.lang.invoke."))
+				return key + " at " + frame;
+		}
+		return key + " " + exception.getMessage();
+	}
+}
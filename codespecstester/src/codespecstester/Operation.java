@@ -0,0 +1,98 @@
+package codespecstester;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import codespecs.PreconditionFailureException;
+
+/**
+ * A public constructor or public instance method of a class under test, which a sequence can call.
+ */
+class Operation {
+	/** The class that the constructor creates, or that declares the method. */
+	final Class<?> owner;
+	final String name;
+	final boolean constructor;
+	final Class<?>[] parameterTypes;
+	final boolean returnsValue;
+	/** The name of the spec method that checks calls of this operation, as in PreconditionFailureException.getSpecMethodName. */
+	final String specMethodName;
+	/** Takes the receiver, if any, and the arguments, in an array. */
+	private final MethodHandle handle;
+	final LongAdder calls = new LongAdder();
+	final LongAdder rejected = new LongAdder();
+
+	private Operation(Executable executable, MethodHandle handle) {
+		this.owner = executable.getDeclaringClass();
+		this.constructor = executable instanceof Constructor;
+		this.name = constructor ? owner.getSimpleName() : executable.getName();
+		this.parameterTypes = executable.getParameterTypes();
+		this.returnsValue = !constructor && ((Method)executable).getReturnType() != void.class;
+		this.specMethodName = constructor ? "constructorSpec" : name + "Spec";
+		int arity = handle.type().parameterCount();
+		this.handle = handle.asType(MethodType.genericMethodType(arity)).asSpreader(Object[].class, arity);
+	}
+
+	Object invoke(Object[] receiverAndArguments) throws Throwable {
+		return (Object)handle.invokeExact(receiverAndArguments);
+	}
+
+	/**
+	 * Returns whether the given precondition failure, thrown by a call of this operation on the given target, comes from the spec
+	 * of this operation, rather than from a call made by the operation; that is, whether the call was rejected.
+	 * The target is the receiver of a method, or the class a constructor creates.
+	 */
+	boolean isRejection(PreconditionFailureException e, Class<?> target) {
+		return specMethodName.equals(e.getSpecMethodName()) && SpecClasses.of(target, !constructor).contains(e.getSpecClassName());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder string = new StringBuilder(constructor ? "new " + owner.getName() : owner.getName() + "." + name).append('(');
+		for (int i = 0; i < parameterTypes.length; i++)
+			string.append(i == 0 ? "" : ", ").append(parameterTypes[i].getSimpleName());
+		return string.append(')').toString();
+	}
+
+	/**
+	 * Returns the operations of the given classes, in a fixed order, so that a seed always gives the same sequence.
+	 * Adds the constructors and methods that take parameters the tester cannot supply to skipped.
+	 */
+	static List<Operation> of(Collection<Class<?>> classes, List<String> skipped) throws IllegalAccessException {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		List<Operation> operations = new ArrayList<>();
+		Set<Method> methods = new HashSet<>();
+		for (Class<?> c : classes) {
+			if (!c.isInterface() && !Modifier.isAbstract(c.getModifiers()))
+				for (Constructor<?> constructor : c.getConstructors())
+					if (suppliable(constructor, classes, skipped))
+						operations.add(new Operation(constructor, lookup.unreflectConstructor(constructor)));
+			for (Method method : c.getMethods())
+				if (method.getDeclaringClass() != Object.class && !Modifier.isStatic(method.getModifiers()) && !method.isSynthetic()
+						&& method.getName().indexOf('$') < 0 && methods.add(method) && suppliable(method, classes, skipped))
+					operations.add(new Operation(method, lookup.unreflect(method)));
+		}
+		operations.sort((o1, o2) -> o1.toString().compareTo(o2.toString()));
+		return operations;
+	}
+
+	private static boolean suppliable(Executable executable, Collection<Class<?>> classes, List<String> skipped) {
+		for (Class<?> type : executable.getParameterTypes())
+			if (!Values.canGenerate(type) && classes.stream().noneMatch(type::isAssignableFrom)) {
+				skipped.add(executable + ": cannot supply a " + type.getName());
+				return false;
+			}
+		return true;
+	}
+}
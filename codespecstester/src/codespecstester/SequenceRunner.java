@@ -0,0 +1,148 @@
+package codespecstester;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+import codespecs.PreconditionFailureException;
+
+/**
+ * Generates and runs random call sequences. Each sequence is determined by its seed: it calls random operations on the objects
+ * it created earlier, with random arguments, and stops at the first failure.
+ *
+ * A precondition failure of the called operation's own spec means the generated call was not a legal input: the call is rejected,
+ * and the sequence goes on, since a failing precondition leaves the receiver as it was. Any other exception thrown by a call is a failure:
+ * a postcondition failure, a precondition failure of a call the operation made, or an exception thrown by code whose precondition held.
+ *
+ * Not thread-safe; each worker has its own.
+ */
+class SequenceRunner {
+	/** The maximum number of objects a sequence keeps to call operations on and pass as arguments; a new object then replaces a random one. */
+	static final int POOL_SIZE = 8;
+
+	private final List<Operation> operations;
+	private final List<Operation> constructors;
+	private final int length;
+	private final Object[] pool = new Object[POOL_SIZE];
+	/** The number of the call that created each pool object, for the trace. */
+	private final int[] poolIds = new int[POOL_SIZE];
+	private int poolCount;
+
+	/** The calls made and the calls rejected by the last sequence run. */
+	int calls;
+	int rejected;
+
+	SequenceRunner(List<Operation> operations, List<Operation> constructors, int length) {
+		this.operations = operations;
+		this.constructors = constructors;
+		this.length = length;
+	}
+
+	/**
+	 * Runs the sequence with the given seed. Returns the failure it found, or null. If trace is not null, appends the calls to it, one per line.
+	 */
+	Failure run(long seed, StringBuilder trace) {
+		SplittableRandom random = new SplittableRandom(seed);
+		poolCount = 0;
+		calls = 0;
+		rejected = 0;
+		for (int step = 0; step < length; step++) {
+			Operation operation = operations.get(random.nextInt(operations.size()));
+			int receiver = -1;
+			if (!operation.constructor && (receiver = pick(operation.owner, random)) < 0)
+				operation = constructors.get(random.nextInt(constructors.size()));
+			int offset = operation.constructor ? 0 : 1;
+			Object[] arguments = new Object[offset + operation.parameterTypes.length];
+			int[] argumentIds = trace == null ? null : new int[arguments.length];
+			if (!operation.constructor) {
+				arguments[0] = pool[receiver];
+				if (trace != null)
+					argumentIds[0] = poolIds[receiver];
+			}
+			if (!supplyArguments(operation, arguments, argumentIds, offset, random))
+				continue;
+			if (trace != null)
+				traceCall(trace, operation, arguments, argumentIds, step);
+			calls++;
+			operation.calls.increment();
+			Object result;
+			try {
+				result = operation.invoke(arguments);
+			} catch (PreconditionFailureException e) {
+				if (operation.isRejection(e, operation.constructor ? operation.owner : arguments[0].getClass())) {
+					rejected++;
+					operation.rejected.increment();
+					if (trace != null)
+						trace.append("  // rejected: ").append(e.getMessage()).append('\n');
+					continue;
+				}
+				return new Failure(operation, e, seed);
+			} catch (VirtualMachineError e) {
+				if (!(e instanceof StackOverflowError))
+					throw e;
+				return new Failure(operation, e, seed);
+			} catch (Throwable t) {
+				return new Failure(operation, t, seed);
+			}
+			if (trace != null && operation.returnsValue)
+				trace.append("  // returned ").append(result).append('\n');
+			if (operation.constructor)
+				add(result, step, random);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the index of a random pool object that is an instance of the given type, or -1 if there is none.
+	 */
+	private int pick(Class<?> type, SplittableRandom random) {
+		if (poolCount == 0)
+			return -1;
+		int start = random.nextInt(poolCount);
+		for (int i = 0; i < poolCount; i++) {
+			int index = (start + i) % poolCount;
+			if (type.isInstance(pool[index]))
+				return index;
+		}
+		return -1;
+	}
+
+	private boolean supplyArguments(Operation operation, Object[] arguments, int[] argumentIds, int offset, SplittableRandom random) {
+		for (int i = 0; i < operation.parameterTypes.length; i++) {
+			Class<?> type = operation.parameterTypes[i];
+			if (Values.canGenerate(type)) {
+				arguments[offset + i] = Values.generate(type, random);
+			} else {
+				int index = pick(type, random);
+				if (index < 0)
+					return false;
+				arguments[offset + i] = pool[index];
+				if (argumentIds != null)
+					argumentIds[offset + i] = poolIds[index];
+			}
+		}
+		return true;
+	}
+
+	private void add(Object object, int id, SplittableRandom random) {
+		int index = poolCount < POOL_SIZE ? poolCount++ : random.nextInt(POOL_SIZE);
+		pool[index] = object;
+		poolIds[index] = id;
+	}
+
+	private static void traceCall(StringBuilder trace, Operation operation, Object[] arguments, int[] argumentIds, int step) {
+		int offset = operation.constructor ? 0 : 1;
+		if (operation.constructor)
+			trace.append(operation.owner.getName()).append(" o").append(step).append(" = new ").append(operation.owner.getName()).append('(');
+		else
+			trace.append('o').append(argumentIds[0]).append('.').append(operation.name).append('(');
+		for (int i = offset; i < arguments.length; i++) {
+			if (i > offset)
+				trace.append(", ");
+			if (Values.canGenerate(operation.parameterTypes[i - offset]))
+				trace.append(Values.literal(arguments[i]));
+			else
+				trace.append('o').append(argumentIds[i]);
+		}
+		trace.append(");\n");
+	}
+}
@@ -0,0 +1,52 @@
+package codespecstester;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the spec classes of a class: x.y.ZSpec for class x.y.Z annotated with @SeeCodeSpecs, and x.y.spec.ZSpec if package x.y is annotated.
+ * Since @SeeCodeSpecs is not retained at run time, a class is taken to have specs if one of these classes exists.
+ */
+class SpecClasses {
+	private static final ClassValue<Set<String>> OWN = new ClassValue<Set<String>>() {
+		@Override
+		protected Set<String> computeValue(Class<?> c) {
+			Set<String> names = new HashSet<>();
+			String name = c.getName();
+			int dot = name.lastIndexOf('.');
+			for (String specClassName : new String[] {name + "Spec", name.substring(0, dot + 1) + "spec." + name.substring(dot + 1) + "Spec"})
+				if (exists(specClassName, c.getClassLoader()))
+					names.add(specClassName);
+			return Collections.unmodifiableSet(names);
+		}
+	};
+
+	private static final ClassValue<Set<String>> INHERITED = new ClassValue<Set<String>>() {
+		@Override
+		protected Set<String> computeValue(Class<?> c) {
+			Set<String> names = new HashSet<>(OWN.get(c));
+			if (c.getSuperclass() != null)
+				names.addAll(get(c.getSuperclass()));
+			for (Class<?> i : c.getInterfaces())
+				names.addAll(get(i));
+			return Collections.unmodifiableSet(names);
+		}
+	};
+
+	private static boolean exists(String className, ClassLoader loader) {
+		try {
+			Class.forName(className, false, loader);
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the names of the spec classes of the given class and, if inherited is set, of its supertypes.
+	 */
+	static Set<String> of(Class<?> c, boolean inherited) {
+		return (inherited ? INHERITED : OWN).get(c);
+	}
+}
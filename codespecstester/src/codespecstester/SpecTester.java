@@ -0,0 +1,267 @@
+package codespecstester;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import codespecs.CodeSpecs;
+
+/**
+ * Tests classes with specs by running random call sequences against them, with their specs as oracles: the preconditions reject
+ * the calls that are not legal inputs, and the postconditions decide whether the others behaved. See SequenceRunner.
+ *
+ * Usage: java -javaagent:codespecsweaver.jar -cp codespecstester.jar:codespecs.jar:classes codespecstester.SpecTester
+ *        [-sequences n] [-seconds s] [-length n] [-threads n] [-seed n] [-maxFailures n] [-replay seed] class-or-package.*...
+ *
+ * The classes must be woven, by the agent or ahead of time. A pattern x.y.* stands for the classes with specs in package x.y and its subpackages
+ * found on the class path. The sequences run on a ForkJoinPool with one worker per thread; each worker draws the seeds of its sequences
+ * from its own generator, seeded from the run's seed, so that workers share no state but the counters. A run stops after the given number
+ * of sequences or seconds, or once it has found the given number of distinct failures. Each failure is reported with the seed of
+ * the sequence that found it; -replay runs that sequence again and prints its calls.
+ */
+public class SpecTester {
+	/** The number of sequences a worker claims at a time. */
+	private static final int BATCH_SIZE = 256;
+
+	long sequenceCount = 1000000;
+	long seconds;
+	int length = 20;
+	int threads = Runtime.getRuntime().availableProcessors();
+	long seed = new SplittableRandom().nextLong();
+	int maxFailures = 10;
+
+	private List<Operation> operations;
+	private List<Operation> constructors;
+	private final AtomicLong unclaimed = new AtomicLong();
+	private volatile boolean stopped;
+	private long deadline;
+	private final LongAdder sequences = new LongAdder();
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final ConcurrentHashMap<String, Failure> failures = new ConcurrentHashMap<>();
+
+	public static void main(String[] args) throws Exception {
+		SpecTester tester = new SpecTester();
+		Long replay = null;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 == args.length)
+				usage();
+			long value = parseLong(args[i], args[i + 1]);
+			switch (args[i]) {
+			case "-sequences":
+				tester.sequenceCount = value;
+				break;
+			case "-seconds":
+				tester.seconds = value;
+				break;
+			case "-length":
+				tester.length = (int)value;
+				break;
+			case "-threads":
+				tester.threads = (int)Math.max(1, value);
+				break;
+			case "-seed":
+				tester.seed = value;
+				break;
+			case "-maxFailures":
+				tester.maxFailures = (int)Math.max(1, value);
+				break;
+			case "-replay":
+				replay = value;
+				break;
+			default:
+				usage();
+			}
+		}
+		if (i == args.length)
+			usage();
+		Set<Class<?>> classes = new LinkedHashSet<>();
+		for (; i < args.length; i++)
+			classes.addAll(findClasses(args[i]));
+		List<String> skipped = new ArrayList<>();
+		tester.operations = Operation.of(classes, skipped);
+		tester.constructors = tester.operations.stream().filter(operation -> operation.constructor).collect(Collectors.toList());
+		skipped.forEach(message -> System.out.println("codespecstester: skipping " + message));
+		if (tester.constructors.isEmpty()) {
+			System.err.println("codespecstester: no public constructor to create objects with in " + classes);
+			System.exit(2);
+		}
+		if (!CodeSpecs.areChecksEnabled())
+			System.out.println("codespecstester: warning: spec checks are disabled, so no call fails");
+		if (replay != null) {
+			StringBuilder trace = new StringBuilder();
+			Failure failure = new SequenceRunner(tester.operations, tester.constructors, tester.length).run(replay, trace);
+			System.out.print(trace);
+			System.out.println(failure == null ? "codespecstester: sequence " + replay + " passed" : "codespecstester: sequence " + replay + " failed: " + failure.exception);
+			if (failure != null)
+				failure.exception.printStackTrace(System.out);
+			System.exit(failure == null ? 0 : 1);
+		}
+		System.out.println("codespecstester: testing " + tester.operations.size() + " operations of " + classes.size() + " classes with " + tester.threads
+				+ " threads, seed " + tester.seed);
+		tester.run();
+		System.exit(tester.failures.isEmpty() ? 0 : 1);
+	}
+
+	private static long parseLong(String option, String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Expected " + option + " n, got " + value);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java -javaagent:codespecsweaver.jar -cp codespecstester.jar:codespecs.jar:classes codespecstester.SpecTester"
+				+ " [-sequences n] [-seconds s] [-length n] [-threads n] [-seed n] [-maxFailures n] [-replay seed] class-or-package.*...");
+		System.exit(2);
+	}
+
+	/**
+	 * Returns the named class, or, for a pattern x.y.*, the classes in package x.y and its subpackages on the class path
+	 * that have specs, leaving out spec classes and nested classes.
+	 */
+	static List<Class<?>> findClasses(String pattern) throws IOException, ClassNotFoundException {
+		ClassLoader loader = SpecTester.class.getClassLoader();
+		List<Class<?>> classes = new ArrayList<>();
+		if (!pattern.endsWith(".*")) {
+			Class<?> c = Class.forName(pattern, true, loader);
+			if (SpecClasses.of(c, true).isEmpty())
+				System.out.println("codespecstester: warning: " + pattern + " has no specs");
+			classes.add(c);
+			return classes;
+		}
+		String prefix = pattern.substring(0, pattern.length() - 1).replace('.', '/');
+		Set<String> classNames = new TreeSet<>();
+		for (String element : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			Path path = Paths.get(element);
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> files = Files.walk(path)) {
+					files.map(file -> path.relativize(file).toString().replace(File.separatorChar, '/')).filter(name -> name.startsWith(prefix)).forEach(classNames::add);
+				}
+			} else if (Files.isRegularFile(path)) {
+				try (JarFile jarFile = new JarFile(path.toFile())) {
+					for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+						String name = e.nextElement().getName();
+						if (name.startsWith(prefix))
+							classNames.add(name);
+					}
+				}
+			}
+		}
+		for (String name : classNames) {
+			if (!name.endsWith(".class") || name.indexOf('$') >= 0 || name.endsWith("Spec.class") || name.contains("/spec/") || name.endsWith("package-info.class"))
+				continue;
+			Class<?> c;
+			try {
+				c = Class.forName(name.substring(0, name.length() - ".class".length()).replace('/', '.'), false, loader);
+			} catch (LinkageError e) {
+				continue; // Refers to classes that are not on the class path, as tests may.
+			}
+			if (Modifier.isPublic(c.getModifiers()) && !SpecClasses.of(c, true).isEmpty())
+				classes.add(c);
+		}
+		return classes;
+	}
+
+	void run() throws InterruptedException {
+		unclaimed.set(sequenceCount);
+		long start = System.nanoTime();
+		deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		SplittableRandom seeds = new SplittableRandom(seed);
+		for (int i = 0; i < threads; i++) {
+			long workerSeed = seeds.nextLong();
+			pool.execute(() -> work(workerSeed));
+		}
+		pool.shutdown();
+		long lastSequences = 0;
+		long lastCalls = 0;
+		long last = start;
+		while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+			long now = System.nanoTime();
+			long sequences = this.sequences.sum();
+			long calls = this.calls.sum();
+			System.out.println(progress(sequences, calls, rejected.sum(), (sequences - lastSequences) * 1e9 / (now - last), (calls - lastCalls) * 1e9 / (now - last)));
+			lastSequences = sequences;
+			lastCalls = calls;
+			last = now;
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long sequences = this.sequences.sum();
+		long calls = this.calls.sum();
+		System.out.println(progress(sequences, calls, rejected.sum(), sequences / elapsed, calls / elapsed) + String.format(" in %.1f s", elapsed));
+		if (failures.size() < maxFailures) { // Otherwise the run stopped early.
+			for (Operation operation : operations) {
+				long operationCalls = operation.calls.sum();
+				if (operationCalls == 0)
+					System.out.println("codespecstester: never called " + operation);
+				else if (operation.rejected.sum() == operationCalls)
+					System.out.println("codespecstester: all " + operationCalls + " calls of " + operation + " were rejected by its precondition");
+			}
+		}
+		List<Failure> sorted = new ArrayList<>(failures.values());
+		sorted.sort((f1, f2) -> f1.key().compareTo(f2.key()));
+		for (Failure failure : sorted) {
+			System.out.println();
+			System.out.println("FAILURE in " + failure.operation + ": " + failure.exception + " (" + failure.count.sum() + " sequences; replay with -length " + length
+					+ " -replay " + failure.seed + ")");
+			StringBuilder trace = new StringBuilder();
+			new SequenceRunner(operations, constructors, length).run(failure.seed, trace);
+			System.out.print(trace);
+		}
+	}
+
+	private String progress(long sequences, long calls, long rejected, double sequencesPerSecond, double callsPerSecond) {
+		return String.format("codespecstester: %,d sequences (%,.0f/s), %,d calls (%,.0f/s), %.1f%% rejected, %d failures", sequences, sequencesPerSecond,
+				calls, callsPerSecond, calls == 0 ? 0.0 : 100.0 * rejected / calls, failures.size());
+	}
+
+	private void work(long workerSeed) {
+		SplittableRandom random = new SplittableRandom(workerSeed);
+		SequenceRunner runner = new SequenceRunner(operations, constructors, length);
+		while (!stopped) {
+			long batch = unclaimed.getAndAdd(-BATCH_SIZE);
+			if (batch <= 0)
+				break;
+			for (long i = Math.min(batch, BATCH_SIZE); i > 0 && !stopped; i--) {
+				long sequenceSeed = random.nextLong();
+				Failure failure = runner.run(sequenceSeed, null);
+				sequences.increment();
+				calls.add(runner.calls);
+				rejected.add(runner.rejected);
+				if (failure != null)
+					record(failure);
+			}
+			if (seconds > 0 && System.nanoTime() - deadline > 0)
+				stopped = true;
+		}
+	}
+
+	private void record(Failure failure) {
+		Failure first = failures.putIfAbsent(failure.key(), failure);
+		(first == null ? failure : first).count.increment();
+		if (failures.size() >= maxFailures)
+			stopped = true;
+	}
+}
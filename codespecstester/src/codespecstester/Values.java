@@ -0,0 +1,107 @@
+package codespecstester;
+
+import java.util.SplittableRandom;
+
+/**
+ * Generates random arguments of primitive types, their wrappers and String.
+ *
+ * Numbers are mostly small, since preconditions typically compare arguments with each other and with the state built up by earlier calls,
+ * and sometimes one of the boundary values, or any value at all.
+ */
+class Values {
+	private static final int[] INTS = {0, 1, -1, 2, Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MAX_VALUE, Integer.MAX_VALUE - 1};
+	private static final long[] LONGS = {0, 1, -1, 2, Long.MIN_VALUE, Long.MIN_VALUE + 1, Long.MAX_VALUE, Long.MAX_VALUE - 1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+	private static final double[] DOUBLES = {0.0, -0.0, 1.0, -1.0, 0.5, Double.MIN_VALUE, Double.MAX_VALUE, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NaN};
+	private static final String[] STRINGS = {"", "a", " ", "null", "\u00e9\u4e2d"};
+
+	static boolean canGenerate(Class<?> type) {
+		return type.isPrimitive() && type != void.class || type == String.class || type == Integer.class || type == Long.class || type == Short.class
+				|| type == Byte.class || type == Character.class || type == Boolean.class || type == Double.class || type == Float.class;
+	}
+
+	/** Returns a random value of the given type, for which canGenerate holds. */
+	static Object generate(Class<?> type, SplittableRandom random) {
+		if (type == int.class || type == Integer.class)
+			return nextInt(random);
+		if (type == long.class || type == Long.class)
+			return nextLong(random);
+		if (type == boolean.class || type == Boolean.class)
+			return random.nextBoolean();
+		if (type == double.class || type == Double.class)
+			return nextDouble(random);
+		if (type == float.class || type == Float.class)
+			return (float)nextDouble(random);
+		if (type == short.class || type == Short.class)
+			return (short)nextInt(random);
+		if (type == byte.class || type == Byte.class)
+			return (byte)nextInt(random);
+		if (type == char.class || type == Character.class)
+			return random.nextInt(4) == 0 ? (char)random.nextInt(Character.MAX_VALUE + 1) : (char)('a' + random.nextInt(26));
+		return nextString(random);
+	}
+
+	static int nextInt(SplittableRandom random) {
+		switch (random.nextInt(8)) {
+		case 0:
+			return INTS[random.nextInt(INTS.length)];
+		case 1:
+			return random.nextInt();
+		default:
+			return random.nextInt(-16, 101);
+		}
+	}
+
+	static long nextLong(SplittableRandom random) {
+		switch (random.nextInt(8)) {
+		case 0:
+			return LONGS[random.nextInt(LONGS.length)];
+		case 1:
+			return random.nextLong();
+		default:
+			return random.nextInt(-16, 101);
+		}
+	}
+
+	static double nextDouble(SplittableRandom random) {
+		switch (random.nextInt(8)) {
+		case 0:
+			return DOUBLES[random.nextInt(DOUBLES.length)];
+		case 1:
+			return random.nextDouble() * 2e6 - 1e6;
+		default:
+			return random.nextInt(-16, 101) / (random.nextBoolean() ? 1.0 : 4.0);
+		}
+	}
+
+	static String nextString(SplittableRandom random) {
+		if (random.nextInt(4) == 0)
+			return STRINGS[random.nextInt(STRINGS.length)];
+		char[] chars = new char[random.nextInt(9)];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = (char)('a' + random.nextInt(26));
+		return new String(chars);
+	}
+
+	/** Formats a generated value as a Java literal, for the trace of a failing sequence. */
+	static String literal(Object value) {
+		if (value instanceof String) {
+			StringBuilder literal = new StringBuilder("\"");
+			for (char c : ((String)value).toCharArray())
+				literal.append(c < ' ' || c > '~' ? String.format("\\u%04x", (int)c) : c == '"' || c == '\\' ? "\\" + c : String.valueOf(c));
+			return literal.append('"').toString();
+		}
+		if (value instanceof Character) {
+			char c = (Character)value;
+			return c < ' ' || c > '~' ? String.format("'\\u%04x'", (int)c) : c == '\'' || c == '\\' ? "'\\" + c + "'" : "'" + c + "'";
+		}
+		if (value instanceof Double && (((Double)value).isNaN() || ((Double)value).isInfinite()))
+			return "Double." + (((Double)value).isNaN() ? "NaN" : (Double)value > 0 ? "POSITIVE_INFINITY" : "NEGATIVE_INFINITY");
+		if (value instanceof Float && (((Float)value).isNaN() || ((Float)value).isInfinite()))
+			return "Float." + (((Float)value).isNaN() ? "NaN" : (Float)value > 0 ? "POSITIVE_INFINITY" : "NEGATIVE_INFINITY");
+		if (value instanceof Long)
+			return value + "L";
+		if (value instanceof Float)
+			return value + "F";
+		return String.valueOf(value);
+	}
+}
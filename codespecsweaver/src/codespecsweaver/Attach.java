@@ -0,0 +1,30 @@
+package codespecsweaver;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+/**
+ * Attaches the agent to a running JVM.
+ *
+ * Usage: java -cp codespecsweaver.jar:$JAVA_HOME/lib/tools.jar codespecsweaver.Attach pid [agentoptions]
+ *
+ * The attach API lives in tools.jar up to Java 8 and in module jdk.attach from Java 9 on, so we call it reflectively.
+ */
+public class Attach {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java -cp codespecsweaver.jar:$JAVA_HOME/lib/tools.jar codespecsweaver.Attach pid [agentoptions]");
+			System.exit(1);
+		}
+		String agentJar = new File(Attach.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		Class<?> virtualMachineClass = Class.forName("com.sun.tools.attach.VirtualMachine");
+		Object vm = virtualMachineClass.getMethod("attach", String.class).invoke(null, args[0]);
+		try {
+			Method loadAgent = virtualMachineClass.getMethod("loadAgent", String.class, String.class);
+			loadAgent.invoke(vm, agentJar, args.length == 2 ? args[1] : null);
+		} finally {
+			virtualMachineClass.getMethod("detach").invoke(vm);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package codespecsweaver;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+
+/**
+ * A thread-safe cache keyed by (class loader, key) pairs, which computes each value once.
+ *
+ * Class loaders are held weakly, so that the entries for a class loader go away when the class loader is collected.
+ * Values must therefore not refer to their class loader. Finding a class loader's entries takes no lock.
+ *
+ * While a thread computes a value, other threads that look up the same key wait for it. Computing a value may read resources
+ * through the class loader, which may load classes, which re-enters the weaver and this cache: a thread that looks up a key
+ * it is itself computing, or whose computation waits, through other threads, for the current thread, computes the value directly
+ * rather than wait for itself. If the computation returns null or throws, nothing is cached, and a waiting thread computes the value itself.
+ */
+class ClassLoaderCache<K, V> {
+	/** The computations in progress that each thread waits for, to detect cycles. */
+	private static final ConcurrentHashMap<Thread, Pending> waiting = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<LoaderKey, ConcurrentHashMap<K, Object>> maps = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<K, Object> bootstrapMap = new ConcurrentHashMap<>();
+	private final ReferenceQueue<ClassLoader> collected = new ReferenceQueue<>();
+
+	/** A weak reference to a class loader that compares by identity, so that it can key a map. */
+	private static final class LoaderKey extends WeakReference<ClassLoader> {
+		private final int hash;
+
+		LoaderKey(ClassLoader classLoader, ReferenceQueue<ClassLoader> queue) {
+			super(classLoader, queue);
+			hash = System.identityHashCode(classLoader);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other == this)
+				return true;
+			if (!(other instanceof LoaderKey))
+				return false;
+			ClassLoader classLoader = get();
+			return classLoader != null && classLoader == ((LoaderKey)other).get();
+		}
+	}
+
+	/** A value being computed. */
+	private static final class Pending {
+		final Thread owner = Thread.currentThread();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Object value;
+
+		void complete(Object value) {
+			this.value = value;
+			done.countDown();
+		}
+
+		/** Returns the computed value, or null if the computation returned null or threw. */
+		Object await() {
+			boolean interrupted = false;
+			try {
+				for (;;) {
+					try {
+						done.await();
+						return value;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Whether waiting for this computation would make the current thread wait for itself.
+		 * Threads register what they wait for before they check, so that of two threads that start waiting for each other at once, at least one sees the cycle.
+		 */
+		boolean waitsForCurrentThread() {
+			Thread current = Thread.currentThread();
+			int steps = waiting.size() + 1; // Bounds the walk if other threads form a cycle, which they detect themselves.
+			for (Pending pending = this; pending != null && steps-- > 0; pending = waiting.get(pending.owner))
+				if (pending.owner == current)
+					return true;
+			return false;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(ClassLoader classLoader, K key, Function<? super K, ? extends V> compute) {
+		ConcurrentHashMap<K, Object> map = mapFor(classLoader);
+		Object value = map.get(key);
+		if (value == null) {
+			Pending pending = new Pending();
+			value = map.putIfAbsent(key, pending);
+			if (value == null)
+				return compute(map, key, pending, compute);
+		}
+		if (value instanceof Pending) {
+			Pending pending = (Pending)value;
+			Thread current = Thread.currentThread();
+			waiting.put(current, pending);
+			try {
+				if (pending.waitsForCurrentThread())
+					return compute.apply(key);
+				value = pending.await();
+			} finally {
+				waiting.remove(current);
+			}
+			if (value == null)
+				return compute.apply(key);
+		}
+		return (V)value;
+	}
+
+	private V compute(ConcurrentHashMap<K, Object> map, K key, Pending pending, Function<? super K, ? extends V> compute) {
+		V value = null;
+		try {
+			value = compute.apply(key);
+		} finally {
+			if (value == null)
+				map.remove(key, pending);
+			else
+				map.replace(key, pending, value);
+			pending.complete(value);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the cached value, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	V getIfPresent(ClassLoader classLoader, K key) {
+		ConcurrentHashMap<K, Object> map = classLoader == null ? bootstrapMap : maps.get(new LoaderKey(classLoader, null));
+		Object value = map == null ? null : map.get(key);
+		return value instanceof Pending ? null : (V)value;
+	}
+
+	private ConcurrentHashMap<K, Object> mapFor(ClassLoader classLoader) {
+		if (classLoader == null)
+			return bootstrapMap;
+		for (Reference<? extends ClassLoader> key; (key = collected.poll()) != null; )
+			maps.remove(key);
+		ConcurrentHashMap<K, Object> map = maps.get(new LoaderKey(classLoader, null));
+		if (map == null) {
+			map = new ConcurrentHashMap<>();
+			ConcurrentHashMap<K, Object> existing = maps.putIfAbsent(new LoaderKey(classLoader, collected), map);
+			if (existing != null)
+				map = existing;
+		}
+		return map;
+	}
+}
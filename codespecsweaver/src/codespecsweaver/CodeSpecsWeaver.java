@@ -1,33 +1,172 @@
 package codespecsweaver;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.MessageDigest;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.objectweb.asm.*;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 import org.objectweb.asm.commons.Method;
+import org.objectweb.asm.tree.ClassNode;
 
 public class CodeSpecsWeaver implements ClassFileTransformer {
 
-    public static void premain(String agentArgs, Instrumentation inst) {
-        inst.addTransformer(new CodeSpecsWeaver());
+    public static void premain(String agentArgs, Instrumentation inst) throws IOException {
+        inst.addTransformer(newWeaver(WeaverOptions.parse(agentArgs)));
     }
     
+    /** The weaver installed by agentmain, or null if the agent is not attached. */
+    static CodeSpecsWeaver attachedWeaver;
+    /** The Instrumentation instance attachedWeaver was added to. Each attach gets a new one. */
+    static Instrumentation attachedInstrumentation;
+    
+    /**
+     * Attaches the agent to a running JVM. Weaves the classes loaded from now on, and retransforms the loaded classes that need weaving.
+     * Since retransformation cannot add methods, callers check specs at invokedynamic call sites rather than through name$codespecs wrappers.
+     * Attaching again with option unweave retransforms the woven classes back to their original bytes.
+     */
+    public static synchronized void agentmain(String agentArgs, Instrumentation inst) throws IOException, InterruptedException {
+        WeaverOptions options = WeaverOptions.parse(agentArgs);
+        if (options.unweave) {
+        	if (attachedWeaver != null) {
+        		attachedInstrumentation.removeTransformer(attachedWeaver);
+        		Retransformer retransformer = new Retransformer(attachedInstrumentation, attachedWeaver, options);
+        		retransformer.retransform(retransformer.wovenClasses());
+        		attachedWeaver = null;
+        		attachedInstrumentation = null;
+        	}
+        	return;
+        }
+        if (attachedWeaver != null)
+        	throw new IllegalStateException("codespecsweaver is attached already; attach with option unweave first");
+        if (!inst.isRetransformClassesSupported())
+        	throw new IllegalStateException("codespecsweaver: this JVM cannot retransform classes");
+        options.checkedCallSites = true;
+        CodeSpecsWeaver weaver = newWeaver(options);
+        inst.addTransformer(weaver, true);
+        Retransformer retransformer = new Retransformer(inst, weaver, options);
+        retransformer.retransform(retransformer.classesToWeave());
+        attachedWeaver = weaver;
+        attachedInstrumentation = inst;
+    }
+    
+    private static CodeSpecsWeaver newWeaver(WeaverOptions options) throws IOException {
+        CodeSpecsWeaver weaver = new CodeSpecsWeaver(options);
+        if (weaver.options.cache != null)
+            weaver.cache = new WovenClassCache(Paths.get(weaver.options.cache), weaver.fingerprint());
+        if (weaver.options.stats || weaver.options.timing)
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            	if (weaver.options.stats) {
+            		System.err.println(weaver.statsMessage());
+            		System.err.println(weaver.methodSizes.report());
+            	}
+            	if (weaver.options.timing)
+            		System.err.println(weaver.timer.report());
+            }));
+        return weaver;
+    }
+    
+    final WeaverOptions options;
+    final AtomicLong wovenClassCount = new AtomicLong();
+    final AtomicLong skippedClassCount = new AtomicLong();
+    final AtomicLong cachedClassCount = new AtomicLong();
+    final PhaseTimer timer;
+    final MethodSizeReport methodSizes = new MethodSizeReport();
+    
+    WovenClassCache cache;
+    /** If options.checkedCallSites is set, the classes this weaver has changed, so that they can be unwoven. */
+    final ClassLoaderCache<String, Boolean> wovenClasses = new ClassLoaderCache<>();
+    /** The classes consulted while weaving the current class, if the cache is enabled. */
+    final ThreadLocal<Set<String>> dependencies = new ThreadLocal<>();
+    
+    CodeSpecsWeaver(WeaverOptions options) {
+    	this.options = options;
+    	this.timer = new PhaseTimer(options.timing);
+    }
+    
+    /**
+     * Returns a string that changes whenever the weaver code or the weaving options change.
+     */
+    String fingerprint() throws IOException {
+    	String codeFingerprint = "unknown";
+    	CodeSource codeSource = CodeSpecsWeaver.class.getProtectionDomain().getCodeSource();
+    	if (codeSource != null && codeSource.getLocation() != null) {
+    		try (InputStream is = codeSource.getLocation().openStream()) {
+    			MessageDigest digest = WovenClassCache.newDigest();
+    			byte[] buffer = new byte[8192];
+    			for (int n; (n = is.read(buffer)) > 0; )
+    				digest.update(buffer, 0, n);
+    			codeFingerprint = WovenClassCache.toHex(digest.digest());
+    		}
+    	}
+    	return codeFingerprint + ";" + options.weavingFingerprint() + ";" + MethodSizeReport.Threshold.fingerprint();
+    }
+    
+    String statsMessage() {
+    	return "codespecsweaver: woven " + wovenClassCount.get() + " classes, skipped " + skippedClassCount.get() + " classes, took " + cachedClassCount.get() + " classes from the cache";
+    }
+    
+    /**
+     * Returns the postcondition type that lets a spec check the return value without boxing it.
+     */
     static Type postconditionTypeForReturnType(Type returnType) {
+    	switch (returnType.getSort()) {
+    	case Type.VOID: return Type.getObjectType("java/lang/Runnable");
+    	case Type.BOOLEAN: return Type.getObjectType("codespecs/BooleanConsumer");
+    	case Type.BYTE:
+    	case Type.SHORT:
+    	case Type.CHAR:
+    	case Type.INT: return Type.getObjectType("java/util/function/IntConsumer");
+    	case Type.LONG: return Type.getObjectType("java/util/function/LongConsumer");
+    	case Type.FLOAT:
+    	case Type.DOUBLE: return Type.getObjectType("java/util/function/DoubleConsumer");
+    	default: return Type.getObjectType("java/util/function/Consumer");
+    	}
+    }
+    
+    /**
+     * Returns the postcondition type for specs that take the return value boxed, as a Consumer.
+     */
+    static Type boxingPostconditionTypeForReturnType(Type returnType) {
     	if (returnType == Type.VOID_TYPE)
     		return Type.getObjectType("java/lang/Runnable");
     	else
     		return Type.getObjectType("java/util/function/Consumer");
     }
     
+    /**
+     * Returns the type of the argument of the given postcondition type's accept method.
+     */
+    static Type postconditionArgumentType(Type postconditionType) {
+    	switch (postconditionType.getInternalName()) {
+    	case "codespecs/BooleanConsumer": return Type.BOOLEAN_TYPE;
+    	case "java/util/function/IntConsumer": return Type.INT_TYPE;
+    	case "java/util/function/LongConsumer": return Type.LONG_TYPE;
+    	case "java/util/function/DoubleConsumer": return Type.DOUBLE_TYPE;
+    	default: return Type.getObjectType("java/lang/Object");
+    	}
+    }
+    
     class WrapperMethodInfo {
 		final Type[] wrappeeArgumentTypes;
 		final Type wrappeeReturnType;
@@ -52,24 +191,56 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 		}
     }
     
+    static byte[] readAllBytes(InputStream is) throws IOException {
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	byte[] buffer = new byte[8192];
+    	for (int n; (n = is.read(buffer)) > 0; )
+    		bytes.write(buffer, 0, n);
+    	return bytes.toByteArray();
+    }
+    
     static class ClassInfo {
+    	/** The ClassInfo of a class that does not exist. */
+    	static final ClassInfo ABSENT = new ClassInfo();
+    	
+    	/** Whether the class loader has a class file for the class. */
+    	boolean found;
+    	/** The jar file or class directory the class file came from, if known. See SpecIndex.locationOf. */
+    	String location;
     	boolean hasSeeCodeSpecsAnnotation;
+    	boolean isInterface;
     	String superclassName;
-    	ArrayList<Method> instanceMethods = new ArrayList<>();
-    	ArrayList<Method> staticMethods = new ArrayList<>();
+    	String[] interfaces = new String[0];
+    	HashSet<Method> instanceMethods = new HashSet<>();
+    	HashSet<Method> staticMethods = new HashSet<>();
+    	
+    	private ClassInfo() {}
     	
-    	ClassInfo(ClassLoader classLoader, String className) {
+    	ClassInfo(ClassLoader classLoader, String className, PhaseTimer timer) {
 			String resourceName = className+".class";
     		try {
-	    		InputStream is = classLoader.getResourceAsStream(resourceName);
-	    		if (is != null) {
-		    		ClassReader reader = new ClassReader(is);
+    			byte[] bytes;
+    			PhaseTimer.Phase previousPhase = timer.enter(PhaseTimer.Phase.RESOURCE_IO);
+    			// Most class loaders implement getResourceAsStream through getResource, so asking for the URL costs nothing extra.
+    			URL url = classLoader.getResource(resourceName);
+    			if (url != null)
+    				location = SpecIndex.locationOf(url, className);
+    			try (InputStream is = url != null ? url.openStream() : classLoader.getResourceAsStream(resourceName)) {
+    				bytes = is == null ? null : readAllBytes(is);
+    			} finally {
+    				timer.exit(previousPhase);
+    			}
+	    		if (bytes != null) {
+	    			found = true;
+		    		ClassReader reader = new ClassReader(bytes);
 		    		ClassVisitor v = new ClassVisitor(Opcodes.ASM5) {
 		    			@Override
 		    			public void visit(int version, int access, String name,
 		    					String signature, String superName,
 		    					String[] interfaces) {
+		    				isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
 		    				superclassName = superName;
+		    				ClassInfo.this.interfaces = interfaces;
 		    			}
 		    			
 		    			@Override
@@ -91,8 +262,12 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 		    				return null;
 		    			}
 		    		};
-		    		reader.accept(v, ClassReader.SKIP_DEBUG|ClassReader.SKIP_FRAMES|ClassReader.SKIP_CODE);
-		    		is.close();
+		    		previousPhase = timer.enter(PhaseTimer.Phase.PARSING);
+		    		try {
+		    			reader.accept(v, ClassReader.SKIP_DEBUG|ClassReader.SKIP_FRAMES|ClassReader.SKIP_CODE);
+		    		} finally {
+		    			timer.exit(previousPhase);
+		    		}
 	    		}
     		} catch (IOException e) {
     			throw new RuntimeException(resourceName, e);
@@ -100,15 +275,127 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
     	}
     }
     
-    HashMap<String, ClassInfo> classInfoMap = new HashMap<>(); // TODO: Use (classLoader, className) pairs as keys instead of just class names.
+    final ClassLoaderCache<String, ClassInfo> classInfoCache = new ClassLoaderCache<>();
     
     ClassInfo getClassInfo(ClassLoader classLoader, String className) {
-    	ClassInfo info = classInfoMap.get(className);
-    	if (info == null) {
-    		info = new ClassInfo(classLoader, className);
-    		classInfoMap.put(className, info);
+    	recordDependency(className);
+    	return classInfoCache.get(classLoader, className, name -> new ClassInfo(classLoader, name, timer));
+    }
+    
+    /**
+     * Records that the result of weaving the current class depends on the given class, if the cache is enabled.
+     */
+    void recordDependency(String className) {
+    	if (cache != null) {
+    		Set<String> consulted = dependencies.get();
+    		if (consulted != null)
+    			consulted.add(className);
+    	}
+    }
+    
+    static String packageName(String className) {
+    	int slash = className.lastIndexOf('/');
+    	return slash < 0 ? null : className.substring(0, slash);
+    }
+    
+    /**
+     * Returns whether the package of the given class is annotated with @SeeCodeSpecs, meaning that the specs for its classes
+     * are in its spec subpackage.
+     */
+    boolean packageHasSpecs(ClassLoader classLoader, String className) {
+    	String packageName = packageName(className);
+    	return packageName != null && getClassInfo(classLoader, packageName + "/package-info").hasSeeCodeSpecsAnnotation;
+    }
+    
+    /**
+     * Returns whether the given class or its package is annotated with @SeeCodeSpecs.
+     * Classes outside the include and exclude options' scope are not woven, so they are treated as having no specs.
+     */
+    boolean hasSpecs(ClassLoader classLoader, String className) {
+    	if (!options.classInScope(className))
+    		return false;
+    	ClassInfo info = getClassInfo(classLoader, className);
+    	return info.hasSeeCodeSpecsAnnotation || info.found && packageHasSpecs(classLoader, className);
+    }
+    
+    /**
+     * Returns whether the given class, as seen by the given class loader, is defined by a class loader in the includeLoader and excludeLoader options' scope,
+     * and so gets woven. Assuming that class loaders ask their parents first, the class is defined by the given loader or by the ancestor furthest up
+     * that has its class file.
+     */
+    boolean isDefinedByLoaderInScope(ClassLoader classLoader, String className) {
+    	if (options.loaderScope.isEmpty())
+    		return true;
+    	ClassLoader definingLoader = classLoader;
+    	for (ClassLoader loader = classLoader.getParent(); loader != null; loader = loader.getParent())
+    		if (getClassInfo(loader, className).found)
+    			definingLoader = loader;
+    	return options.loaderInScope(definingLoader);
+    }
+    
+    /**
+     * Returns the name of the spec class for class x/y/z/C in package x/y/z annotated with @SeeCodeSpecs, that is, x/y/z/spec/CSpec.
+     */
+    static String packageSpecClassName(String className) {
+    	int slash = className.lastIndexOf('/');
+    	return className.substring(0, slash) + "/spec" + className.substring(slash) + "Spec";
+    }
+    
+    /**
+     * Returns the name of the spec class for the given class, which has specs.
+     */
+    String specClassName(ClassLoader classLoader, String className) {
+    	if (getClassInfo(classLoader, className).hasSeeCodeSpecsAnnotation)
+    		return className + "Spec";
+    	return packageSpecClassName(className);
+    }
+    
+    final ClassLoaderCache<String, PackageIndex> specPackageIndexCache = new ClassLoaderCache<>();
+    
+    /**
+     * Returns the ClassInfo of the spec class for the given class, which has specs.
+     * If the class comes from a jar with a META-INF/codespecs.idx file, or is in an annotated package,
+     * consults the jar's index or the spec package's index rather than probing for the spec class.
+     * The ClassInfo cache remembers the spec classes that turn out to be absent, per class loader.
+     */
+    ClassInfo getSpecClassInfo(ClassLoader classLoader, String className) {
+    	String specClassName = specClassName(classLoader, className);
+    	ClassInfo classInfo = getClassInfo(classLoader, className);
+    	if (classInfo.location != null && !SpecIndex.forLocation(classInfo.location).mayContain(specClassName)) {
+    		recordDependency(specClassName);
+    		return ClassInfo.ABSENT;
+    	}
+    	if (!classInfo.hasSeeCodeSpecsAnnotation) {
+    		PackageIndex index = specPackageIndexCache.get(classLoader, packageName(specClassName), name -> PackageIndex.build(classLoader, name));
+    		if (!index.mayContain(specClassName)) {
+    			recordDependency(specClassName);
+    			return ClassInfo.ABSENT;
+    		}
+    	}
+    	recordDependency(specClassName);
+    	return classInfoCache.get(classLoader, specClassName, name -> lookUpSpecClass(classLoader, name));
+    }
+    
+    /**
+     * Probes the given class loader for the given spec class. Most spec classes probed for do not exist.
+     * Finding that out means asking the loader's ancestors first, which can mean a slow scan of many jars,
+     * so for a URLClassLoader the answer for its parent is cached with the parent, and shared by its siblings,
+     * and only the loader's own URLs are probed for the rest.
+     */
+    private ClassInfo lookUpSpecClass(ClassLoader classLoader, String specClassName) {
+    	ClassLoader parent = classLoader.getParent();
+    	if (classLoader instanceof URLClassLoader && parent != null && !classInfoCache.get(parent, specClassName, name -> new ClassInfo(parent, name, timer)).found) {
+    		URL url;
+    		PhaseTimer.Phase previousPhase = timer.enter(PhaseTimer.Phase.RESOURCE_IO);
+    		try {
+    			url = ((URLClassLoader)classLoader).findResource(specClassName + ".class");
+    		} finally {
+    			timer.exit(previousPhase);
+    		}
+    		if (url == null)
+    			return ClassInfo.ABSENT;
     	}
-    	return info;
+    	return new ClassInfo(classLoader, specClassName, timer);
     }
     
     boolean methodHasContract(ClassLoader classLoader, String className, String name, String desc) {
@@ -120,28 +407,94 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
     	return new Method("constructorSpec", Type.getMethodDescriptor(Type.getObjectType("java/util/function/Consumer"), Type.getArgumentTypes(desc)));
     }
     
-    Method specMethodForInstanceMethod(String owner, String name, String desc) {
+    Method specMethodForInstanceMethod(String owner, String name, String desc, Type postconditionType) {
     	Type[] argumentTypes = Type.getArgumentTypes(desc);
     	Type[] specArgumentTypes = new Type[argumentTypes.length + 1];
     	int i = 0;
     	specArgumentTypes[i++] = Type.getObjectType(owner);
     	for (Type argType : argumentTypes)
     		specArgumentTypes[i++] = argType;
-    	return new Method(name+"Spec", Type.getMethodDescriptor(postconditionTypeForReturnType(Type.getReturnType(desc)), specArgumentTypes));	
+    	return new Method(name+"Spec", Type.getMethodDescriptor(postconditionType, specArgumentTypes));	
     }
     
+    /**
+     * Returns the postcondition type of the spec in owner's spec class for the given instance method,
+     * or null if there is no such spec. Specs may use either the primitive postcondition type or the boxing one.
+     */
+    Type specPostconditionType(ClassLoader classLoader, String owner, String name, String desc) {
+    	ClassInfo specClassInfo = getSpecClassInfo(classLoader, owner);
+    	Type returnType = Type.getReturnType(desc);
+    	Type postconditionType = postconditionTypeForReturnType(returnType);
+    	if (specClassInfo.staticMethods.contains(specMethodForInstanceMethod(owner, name, desc, postconditionType)))
+    		return postconditionType;
+    	Type boxingPostconditionType = boxingPostconditionTypeForReturnType(returnType);
+    	if (!boxingPostconditionType.equals(postconditionType) && specClassInfo.staticMethods.contains(specMethodForInstanceMethod(owner, name, desc, boxingPostconditionType)))
+    		return boxingPostconditionType;
+    	return null;
+    }
+    
+    /**
+     * The result of getSpecReferrerClass for an (owner, name, descriptor) triple, along with the classes consulted to compute it,
+     * so that a memoized result still reports its dependencies to the woven class cache.
+     */
+    static class SpecResolution {
+    	/** Null if there is no spec. */
+    	final String specReferrerClass;
+    	final String[] consultedClasses;
+    	
+    	SpecResolution(String specReferrerClass, String[] consultedClasses) {
+    		this.specReferrerClass = specReferrerClass;
+    		this.consultedClasses = consultedClasses;
+    	}
+    }
+    
+    /** Keyed by owner + "." + name + descriptor. Remembers misses as well as hits, since most call sites call methods without specs. */
+    final ClassLoaderCache<String, SpecResolution> specResolutionCache = new ClassLoaderCache<>();
+    
     String getSpecReferrerClass(ClassLoader classLoader, String owner, String name, String desc) {
-    	while (!owner.equals("java/lang/Object")) {
-	    	ClassInfo classInfo = getClassInfo(classLoader, owner);
-	    	if (!classInfo.hasSeeCodeSpecsAnnotation)
-	    		return null;
-	    	String specClassName = owner+"Spec";
-	    	if (getClassInfo(classLoader, specClassName).staticMethods.contains(specMethodForInstanceMethod(owner, name, desc)))
-	    		return owner;
-	    	String superclassName = classInfo.superclassName;
-	    	owner = superclassName;
+    	SpecResolution resolution = specResolutionCache.get(classLoader, owner + "." + name + desc, key -> resolveSpecReferrerClass(classLoader, owner, name, desc));
+    	if (cache != null) {
+    		Set<String> consulted = dependencies.get();
+    		if (consulted != null)
+    			Collections.addAll(consulted, resolution.consultedClasses);
     	}
-    	return null;
+    	return resolution.specReferrerClass;
+    }
+    
+    private SpecResolution resolveSpecReferrerClass(ClassLoader classLoader, String owner, String name, String desc) {
+    	PhaseTimer.Phase previousPhase = timer.enter(PhaseTimer.Phase.HIERARCHY_WALK);
+    	Set<String> outerConsulted = dependencies.get();
+    	Set<String> consulted = new HashSet<>();
+    	if (cache != null)
+    		dependencies.set(consulted);
+    	try {
+    		String specReferrerClass = findSpecReferrerClass(classLoader, owner, name, desc);
+	    	return new SpecResolution(specReferrerClass, consulted.toArray(new String[consulted.size()]));
+    	} finally {
+    		if (cache != null) {
+    			if (outerConsulted == null)
+    				dependencies.remove();
+    			else
+    				dependencies.set(outerConsulted);
+    		}
+    		timer.exit(previousPhase);
+    	}
+    }
+
+    /**
+     * Returns the first class or interface with a spec for the given method in a depth-first search of owner and its supertypes
+     * that visits superclasses before superinterfaces, or null if there is none. The search does not go past types without specs.
+     */
+    private String findSpecReferrerClass(ClassLoader classLoader, String owner, String name, String desc) {
+    	if (owner == null || owner.equals("java/lang/Object") || !hasSpecs(classLoader, owner))
+    		return null;
+    	if (specPostconditionType(classLoader, owner, name, desc) != null)
+    		return owner;
+    	ClassInfo info = getClassInfo(classLoader, owner);
+    	String specReferrerClass = findSpecReferrerClass(classLoader, info.superclassName, name, desc);
+    	for (int i = 0; specReferrerClass == null && i < info.interfaces.length; i++)
+    		specReferrerClass = findSpecReferrerClass(classLoader, info.interfaces[i], name, desc);
+    	return specReferrerClass;
     }
 
 	@Override
@@ -153,22 +506,13 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
         		return null; // We assume the bootstrap classes have no contracts.
             if (className != null && className.endsWith("package-info"))
                 return null;
-            ClassReader reader = new ClassReader(classfileBuffer);
-            ClassWriter writer = new ClassWriter(0);
-			Weaver weaver = new Weaver(loader, writer);
-			reader.accept(weaver, ClassReader.EXPAND_FRAMES);
-            byte[] result = writer.toByteArray();
-            /*
-            try {
-                FileOutputStream fos = new FileOutputStream(className.replace('/', '_') + ".class");
-                fos.write(result);
-                fos.close();
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            if (!options.loaderInScope(loader) || className != null && !options.classInScope(className)) {
+            	skippedClassCount.incrementAndGet();
+            	return null;
             }
-            */
+            byte[] result = weaveWithCache(loader, className, classfileBuffer);
+            if (result != null && options.checkedCallSites && className != null)
+            	wovenClasses.get(loader, className, name -> Boolean.TRUE);
             return result;
         // The JVM silently drops exceptions thrown by this method.
         } catch (RuntimeException e) {
@@ -180,7 +524,192 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
         }
     }
 	
-	private static String boxedType(Type type) {
+	/**
+	 * Returns the woven class file, or null if the class needs no weaving, consulting the cache if it is enabled.
+	 */
+	private byte[] weaveWithCache(ClassLoader loader, String className, byte[] classfileBuffer) {
+        if (cache == null || className == null) // VM-anonymous classes are generated afresh in each run.
+        	return weave(loader, classfileBuffer);
+        PhaseTimer.Phase previousPhase = timer.enter(PhaseTimer.Phase.CACHE);
+        String key;
+        byte[] cached;
+        List<MethodSizeReport.Crossing> crossings = new ArrayList<>();
+        try {
+        	key = cache.keyFor(classfileBuffer);
+        	cached = cache.lookup(loader, key, crossings);
+        } finally {
+        	timer.exit(previousPhase);
+        }
+        if (cached != null) {
+        	cachedClassCount.incrementAndGet();
+        	methodSizes.addAll(crossings);
+        	return cached == WovenClassCache.UNCHANGED ? null : cached;
+        }
+        Set<String> consulted = new HashSet<>();
+        dependencies.set(consulted);
+        byte[] result;
+        try {
+        	result = weave(loader, classfileBuffer, crossings);
+        } finally {
+        	dependencies.remove();
+        }
+        methodSizes.addAll(crossings);
+        previousPhase = timer.enter(PhaseTimer.Phase.CACHE);
+        try {
+        	cache.store(loader, key, consulted, result, crossings);
+        } finally {
+        	timer.exit(previousPhase);
+        }
+        return result;
+	}
+	
+	/**
+	 * Returns the woven class file, or null if the class needs no weaving.
+	 */
+	byte[] weave(ClassLoader loader, byte[] classfileBuffer) {
+		List<MethodSizeReport.Crossing> crossings = new ArrayList<>();
+		byte[] result = weave(loader, classfileBuffer, crossings);
+		methodSizes.addAll(crossings);
+		return result;
+	}
+	
+	/**
+	 * Like weave(loader, classfileBuffer), but adds the methods that weaving pushed past an inlining threshold to the given list rather than to methodSizes.
+	 */
+	private byte[] weave(ClassLoader loader, byte[] classfileBuffer, List<MethodSizeReport.Crossing> classCrossings) {
+        if (!mayNeedWeaving(loader, classfileBuffer)) {
+        	skippedClassCount.incrementAndGet();
+        	return null;
+        }
+        ClassReader reader = new ClassReader(classfileBuffer);
+        boolean inlineSpecs = options.inlineSpecs && !options.metrics && reader.readUnsignedShort(6) >= Opcodes.V1_7 && hasSpecs(loader, reader.getClassName());
+        List<MethodSizeReport.Crossing> crossings = new ArrayList<>();
+        byte[] result = weave(loader, reader, inlineSpecs, Collections.emptyMap(), crossings);
+        Map<String, MethodSizeReport.Crossing> outlinedMethods = new HashMap<>();
+        for (MethodSizeReport.Crossing crossing : crossings)
+        	if (crossing.outline)
+        		outlinedMethods.put(crossing.methodName + crossing.desc, crossing);
+        if (!outlinedMethods.isEmpty()) {
+        	crossings = new ArrayList<>();
+        	result = weave(loader, reader, inlineSpecs, outlinedMethods, crossings);
+        	crossings.addAll(outlinedMethods.values());
+        }
+        classCrossings.addAll(crossings);
+        wovenClassCount.incrementAndGet();
+        /*
+        try {
+            FileOutputStream fos = new FileOutputStream(className.replace('/', '_') + ".class");
+            fos.write(result);
+            fos.close();
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        */
+        return result;
+	}
+	
+	private byte[] weave(ClassLoader loader, ClassReader reader, boolean inlineSpecs, Map<String, MethodSizeReport.Crossing> outlinedMethods, List<MethodSizeReport.Crossing> crossings) {
+		try {
+			return weaveOnce(loader, reader, inlineSpecs, outlinedMethods, crossings);
+		} catch (RuntimeException e) {
+			if (!inlineSpecs)
+				throw e;
+			// Computing the frames needs the class files of the types that meet in the woven class; if one is missing, use spec sites instead.
+			crossings.clear();
+			return weaveOnce(loader, reader, false, outlinedMethods, crossings);
+		}
+	}
+	
+	private byte[] weaveOnce(ClassLoader loader, ClassReader reader, boolean inlineSpecs, Map<String, MethodSizeReport.Crossing> outlinedMethods, List<MethodSizeReport.Crossing> crossings) {
+		// Inlined specs change the method's frames, which are easier to compute afresh than to update.
+		ClassWriter writer = inlineSpecs ? new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				return commonSuperClass(loader, type1, type2);
+			}
+		} : new ClassWriter(0);
+		Weaver weaver = new Weaver(loader, writer, inlineSpecs, outlinedMethods, crossings);
+		PhaseTimer.Phase previousPhase = timer.enter(PhaseTimer.Phase.WEAVING);
+		try {
+			reader.accept(weaver, ClassReader.EXPAND_FRAMES);
+			timer.enter(PhaseTimer.Phase.SERIALIZATION); // The exit below ends this phase too.
+			return writer.toByteArray();
+		} finally {
+			timer.exit(previousPhase);
+		}
+	}
+	
+	/**
+	 * Returns the closest common superclass of the given classes, from their ClassInfos rather than by loading them, as ClassWriter would.
+	 */
+	String commonSuperClass(ClassLoader loader, String type1, String type2) {
+		ClassInfo info1 = getClassInfo(loader, type1);
+		ClassInfo info2 = getClassInfo(loader, type2);
+		if (!info1.found || !info2.found)
+			throw new IllegalStateException("Class file not found: " + (info1.found ? type2 : type1));
+		if (info1.isInterface || info2.isInterface)
+			return "java/lang/Object";
+		HashSet<String> superclasses = new HashSet<>();
+		for (String c = type1; c != null; c = superclassName(loader, c))
+			superclasses.add(c);
+		for (String c = type2; c != null; c = superclassName(loader, c))
+			if (superclasses.contains(c))
+				return c;
+		return "java/lang/Object";
+	}
+	
+	private String superclassName(ClassLoader loader, String className) {
+		ClassInfo info = getClassInfo(loader, className);
+		if (!info.found)
+			throw new IllegalStateException("Class file not found: " + className);
+		return info.superclassName;
+	}
+	
+	final ClassLoaderCache<String, ClassNode> specClassNodeCache = new ClassLoaderCache<>();
+	
+	/**
+	 * Returns an inliner for the given spec method, or null if it cannot be inlined. See SpecInliner.
+	 */
+	SpecInliner newSpecInliner(ClassLoader loader, String specClassName, String specMethodName, String specMethodDesc, String className, Type returnType) {
+		ClassNode specClass = specClassNodeCache.get(loader, specClassName, name -> {
+			ClassNode classNode = new ClassNode();
+			byte[] bytes;
+			PhaseTimer.Phase previousPhase = timer.enter(PhaseTimer.Phase.RESOURCE_IO);
+			try (InputStream is = loader.getResourceAsStream(name + ".class")) {
+				bytes = is == null ? null : readAllBytes(is);
+			} catch (IOException e) {
+				throw new RuntimeException(name, e);
+			} finally {
+				timer.exit(previousPhase);
+			}
+			if (bytes != null) {
+				previousPhase = timer.enter(PhaseTimer.Phase.PARSING);
+				try {
+					new ClassReader(bytes).accept(classNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+				} finally {
+					timer.exit(previousPhase);
+				}
+			}
+			return classNode;
+		});
+		return specClass.methods == null ? null : SpecInliner.create(specClass, specMethodName, specMethodDesc, className, returnType);
+	}
+	
+	/**
+	 * Returns false if the class file certainly needs no weaving; see ConstantPoolScanner.
+	 */
+	boolean mayNeedWeaving(ClassLoader loader, byte[] classfileBuffer) {
+		PhaseTimer.Phase previousPhase = timer.enter(PhaseTimer.Phase.PARSING);
+		try {
+			return ConstantPoolScanner.mayNeedWeaving(classfileBuffer, name -> packageHasSpecs(loader, name), owner -> hasSpecs(loader, owner));
+		} finally {
+			timer.exit(previousPhase);
+		}
+	}
+	
+	static String boxedType(Type type) {
 		switch (type.getSort()) {
 		case Type.BOOLEAN: return "Boolean";
 		case Type.BYTE: return "Byte";
@@ -194,7 +723,7 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 		}
 	}
 	
-	private void box(MethodVisitor mv, Type type) {
+	static void box(MethodVisitor mv, Type type) {
 		switch (type.getSort()) {
 		case Type.OBJECT:
 		case Type.ARRAY:
@@ -207,24 +736,158 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 		}
 	}
 
+	/**
+	 * Returns the stack map frame representation of a value of the given type.
+	 */
+	static Object frameType(Type type) {
+		switch (type.getSort()) {
+		case Type.BOOLEAN:
+		case Type.BYTE:
+		case Type.SHORT:
+		case Type.CHAR:
+		case Type.INT: return Opcodes.INTEGER;
+		case Type.LONG: return Opcodes.LONG;
+		case Type.FLOAT: return Opcodes.FLOAT;
+		case Type.DOUBLE: return Opcodes.DOUBLE;
+		default: return type.getInternalName();
+		}
+	}
+	
+	/**
+	 * Converts the return value on top of the stack to the argument type of the given postcondition type.
+	 */
+	private void convertForPostcondition(MethodVisitor mv, Type postconditionType, Type returnType) {
+		if (postconditionArgumentType(postconditionType).getSort() == Type.OBJECT)
+			box(mv, returnType);
+		else if (returnType == Type.FLOAT_TYPE)
+			mv.visitInsn(Opcodes.F2D);
+	}
+	
+	/**
+	 * Given a stack that ends with the converted return value, if any, and a postcondition of the given type,
+	 * checks the postcondition, which failures name as the given spec method of the spec class of the given class.
+	 * The postcondition is null if checks were disabled when the spec was called.
+	 */
+	private void checkPostcondition(MethodVisitor mv, Type postconditionType, ClassLoader classLoader, String specReferrerClass, String specMethodName) {
+		Type string = Type.getObjectType("java/lang/String");
+		String desc;
+		if (postconditionType.getInternalName().equals("java/lang/Runnable"))
+			desc = Type.getMethodDescriptor(Type.VOID_TYPE, postconditionType, string);
+		else
+			desc = Type.getMethodDescriptor(Type.VOID_TYPE, postconditionArgumentType(postconditionType), postconditionType, string);
+		mv.visitLdcInsn(specClassName(classLoader, specReferrerClass).replace('/', '.') + "." + specMethodName);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "codespecs/CodeSpecsRuntime", "checkPostcondition", desc, false);
+	}
+	
+	static final Handle SPEC_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "codespecs/CodeSpecsRuntime", "bootstrapSpec",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;II)Ljava/lang/invoke/CallSite;");
+	
+	static final Handle LAZY_SPEC_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "codespecs/CodeSpecsRuntime", "bootstrapLazySpec",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;II)Ljava/lang/invoke/CallSite;");
+	
+	static final Handle CHECKED_CALL_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "codespecs/CodeSpecsRuntime", "bootstrapCheckedCall",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodHandle;II)Ljava/lang/invoke/CallSite;");
+	
+	/** The bootstrapSpec flag that asks for metrics. Must match codespecs.CodeSpecsRuntime.METRICS. */
+	static final int SPEC_SITE_METRICS = 1;
+	
+	/**
+	 * Marks a class as woven, so that classes woven ahead of time are not woven again by the agent.
+	 */
+	static class WovenAttribute extends Attribute {
+		WovenAttribute() {
+			super(ConstantPoolScanner.WOVEN_ATTRIBUTE);
+		}
+		
+		@Override
+		protected ByteVector write(ClassWriter cw, byte[] code, int len, int maxStack, int maxLocals) {
+			return new ByteVector();
+		}
+	}
+
 	class Weaver extends ClassVisitor implements Opcodes {
 		ClassLoader classLoader;
+		int classVersion;
 		int classAccess;
 		String className;
 		boolean classHasSeeCodeSpecs;
+		/** Whether to inline the specs of this class's methods where possible; see SpecInliner. */
+		boolean inlineSpecs;
+		/**
+		 * The methods, by name and descriptor, to weave with their specs out of line and, unless they are constructors, their code moved into a separate method,
+		 * with the crossings that call for it; see MethodSizeReport.
+		 */
+		Map<String, MethodSizeReport.Crossing> outlinedMethods;
+		/** Receives the methods that weaving pushes past an inlining threshold. */
+		List<MethodSizeReport.Crossing> crossings;
 		ArrayList<Runnable> todoActions = new ArrayList<>();
 		
-		Weaver(ClassLoader classLoader, ClassVisitor cv) {
+		Weaver(ClassLoader classLoader, ClassVisitor cv, boolean inlineSpecs, Map<String, MethodSizeReport.Crossing> outlinedMethods, List<MethodSizeReport.Crossing> crossings) {
 			super(ASM5, cv);
 			this.classLoader = classLoader;
+			this.inlineSpecs = inlineSpecs;
+			this.outlinedMethods = outlinedMethods;
+			this.crossings = crossings;
 		}
 		
 		@Override
 		public void visit(int version, int access, String name,
 				String signature, String superName, String[] interfaces) {
+			this.classVersion = version & 0xFFFF;
 			this.classAccess = access;
+			// The class file the JVM passes when retransforming a class lacks its invisible annotations, so an attached agent consults the class loader's copy.
+			this.classHasSeeCodeSpecs = options.checkedCallSites ? hasSpecs(classLoader, name) : packageHasSpecs(classLoader, name);
 			this.className = name;
 			super.visit(version, access, name, signature, superName, interfaces);
+			super.visitAttribute(new WovenAttribute());
+		}
+		
+		/**
+		 * Calls the spec method for the given method of the given class through a spec site,
+		 * so that checks can be disabled, sampled and metered at run time. With option lazySpecs, the spec site looks up the spec method,
+		 * and so loads the spec class, only when it first checks the spec.
+		 * Class files older than Java 7 cannot use invokedynamic; they call the spec method directly.
+		 */
+		void invokeSpec(MethodVisitor mv, String specifiedClassName, String methodName, String specMethodName, String specMethodDescriptor) {
+			String specClassName = specClassName(classLoader, specifiedClassName);
+			if (classVersion >= V1_7) {
+				int samplingRate = options.samplingRate(specifiedClassName, methodName);
+				int flags = options.metrics ? SPEC_SITE_METRICS : 0;
+				if (options.lazySpecs) {
+					mv.visitInvokeDynamicInsn(specMethodName, specMethodDescriptor, LAZY_SPEC_BOOTSTRAP, specClassName.replace('/', '.'), samplingRate, flags);
+				} else {
+					Handle spec = new Handle(H_INVOKESTATIC, specClassName, specMethodName, specMethodDescriptor);
+					mv.visitInvokeDynamicInsn(specMethodName, specMethodDescriptor, SPEC_BOOTSTRAP, spec, samplingRate, flags);
+				}
+			} else
+				mv.visitMethodInsn(INVOKESTATIC, specClassName, specMethodName, specMethodDescriptor, false);
+		}
+		
+		/**
+		 * Replaces a call of an instance method with a spec in specReferrerClass's spec class by an invokedynamic instruction
+		 * that checks the spec around the call, for interface methods and for classes that must not refer to name$codespecs wrappers (see WeaverOptions.checkedCallSites).
+		 * The call site skips the check if the callee's prologue checks the same spec, as told by the @ChecksSpec annotation woven into the callee.
+		 */
+		void invokeCheckedCall(MethodVisitor mv, int opcode, String owner, String name, String desc, String specReferrerClass) {
+			Type postconditionType = specPostconditionType(classLoader, specReferrerClass, name, desc);
+			Method specMethod = specMethodForInstanceMethod(specReferrerClass, name, desc, postconditionType);
+			Handle spec = new Handle(H_INVOKESTATIC, specClassName(classLoader, specReferrerClass), specMethod.getName(), specMethod.getDescriptor());
+			Handle method = new Handle(opcode == INVOKEINTERFACE ? H_INVOKEINTERFACE : H_INVOKEVIRTUAL, owner, name, desc);
+			int samplingRate = options.samplingRate(specReferrerClass, name);
+			int flags = options.metrics ? SPEC_SITE_METRICS : 0;
+			mv.visitInvokeDynamicInsn(name, new WrapperMethodInfo(owner, name, desc).wrapperDesc, CHECKED_CALL_BOOTSTRAP, spec, method, samplingRate, flags);
+		}
+		
+		/**
+		 * Loads the arguments of a static method with the given argument types, and returns their size.
+		 */
+		int loadArguments(MethodVisitor mv, Type[] argumentTypes) {
+			int index = 0;
+			for (Type argType : argumentTypes) {
+				mv.visitVarInsn(argType.getOpcode(ILOAD), index);
+				index += argType.getSize();
+			}
+			return index;
 		}
 		
 		@Override
@@ -237,11 +900,74 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 		@Override
 		public MethodVisitor visitMethod(int access, String name, String desc,
 				String signature, String[] exceptions) {
-			MethodVisitor superVisitor = super.visitMethod(access, name, desc, signature, exceptions);
-			WeaverMethodVisitor wmv = new WeaverMethodVisitor(access, name, desc, superVisitor);
-			LocalVariablesSorter sorter = new LocalVariablesSorter(access, desc, wmv);
-			wmv.sorter = sorter;
-			return sorter;
+			MethodSizeReport.Crossing outlining = outlinedMethods.get(name + desc);
+			if (outlining != null && !name.equals("<init>"))
+				return outline(access, name, desc, signature, exceptions, outlining);
+			return newWeaverMethodVisitor(access, name, desc, signature, exceptions).originalCode;
+		}
+		
+		WeaverMethodVisitor newWeaverMethodVisitor(int access, String name, String desc, String signature, String[] exceptions) {
+			CodeSizeEvaluator wovenCode = new CodeSizeEvaluator(super.visitMethod(access, name, desc, signature, exceptions));
+			WeaverMethodVisitor wmv = new WeaverMethodVisitor(access, name, desc, wovenCode);
+			wmv.wovenCode = wovenCode;
+			wmv.sorter = new LocalVariablesSorter(access, desc, wmv);
+			wmv.originalCode = new CodeSizeEvaluator(wmv.sorter);
+			return wmv;
+		}
+		
+		/**
+		 * Moves the code of the given method into a private method, and has the given method check its spec around a call of the private method,
+		 * so that the method that callers call stays small enough to inline. Annotations stay with the given method.
+		 */
+		MethodVisitor outline(int access, String name, String desc, String signature, String[] exceptions, MethodSizeReport.Crossing crossing) {
+			String bodyName = MethodSizeReport.outlinedBodyName(name);
+			WeaverMethodVisitor body = newWeaverMethodVisitor(ACC_PRIVATE | ACC_SYNTHETIC | access & ACC_STRICT, bodyName, desc, null, exceptions);
+			WeaverMethodVisitor stub = newWeaverMethodVisitor(access, name, desc, signature, exceptions);
+			return new MethodVisitor(ASM5, body.originalCode) {
+				@Override
+				public void visitParameter(String name, int access) {
+					stub.sorter.visitParameter(name, access);
+				}
+				
+				@Override
+				public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+					return stub.sorter.visitAnnotation(desc, visible);
+				}
+				
+				@Override
+				public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
+					return stub.sorter.visitTypeAnnotation(typeRef, typePath, desc, visible);
+				}
+				
+				@Override
+				public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+					return stub.sorter.visitParameterAnnotation(parameter, desc, visible);
+				}
+				
+				@Override
+				public void visitAttribute(Attribute attr) {
+					stub.sorter.visitAttribute(attr);
+				}
+				
+				@Override
+				public void visitEnd() {
+					super.visitEnd();
+					MethodVisitor mv = stub.sorter;
+					mv.visitCode();
+					mv.visitVarInsn(ALOAD, 0);
+					int size = 1;
+					for (Type argType : Type.getArgumentTypes(desc)) {
+						mv.visitVarInsn(argType.getOpcode(ILOAD), size);
+						size += argType.getSize();
+					}
+					mv.visitMethodInsn(INVOKESPECIAL, className, bodyName, desc, false);
+					Type returnType = Type.getReturnType(desc);
+					mv.visitInsn(returnType.getOpcode(IRETURN));
+					mv.visitMaxs(Math.max(size, returnType.getSize()), size);
+					mv.visitEnd();
+					crossing.outlinedSize = stub.wovenCode.getMaxSize();
+				}
+			};
 		}
 		
 		void performTodoActions() {
@@ -259,12 +985,18 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 		class WeaverMethodVisitor extends MethodVisitor {
 			MethodVisitor mv;
 			LocalVariablesSorter sorter;
+			/** Measure the method's code before and after weaving. */
+			CodeSizeEvaluator originalCode;
+			CodeSizeEvaluator wovenCode;
 			int methodAccess;
 			String methodName;
 			String desc;
 			Type returnType;
 			int postconditionLocalVarId;
 			String specReferrerClass;
+			Type postconditionType;
+			/** Non-null if the spec is inlined rather than called. */
+			SpecInliner inliner;
 
 			public WeaverMethodVisitor(int access, String name, String desc, MethodVisitor mv) {
 				super(ASM5, mv);
@@ -273,12 +1005,22 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 				this.desc = desc;
 				this.mv = mv;
 				if (name.equals("<init>")) {
-					if (classHasSeeCodeSpecs && getClassInfo(classLoader, className+"Spec").staticMethods.contains(specMethodForConstructor(desc)))
+					if (classHasSeeCodeSpecs && getSpecClassInfo(classLoader, className).staticMethods.contains(specMethodForConstructor(desc))) {
 						specReferrerClass = className;
+						if (inlineSpecs && options.samplingRate(className, name) == 1 && !outlinedMethods.containsKey(name + desc))
+							inliner = newSpecInliner(classLoader, specClassName(classLoader, className), "constructorSpec", specMethodForConstructor(desc).getDescriptor(), className, Type.VOID_TYPE);
+					}
 				} else {
 					if (classHasSeeCodeSpecs && (methodAccess & ACC_STATIC) == 0) {
 						specReferrerClass = getSpecReferrerClass(classLoader, className, name, desc);
-						if (Objects.equals(specReferrerClass, className)) {
+						if (specReferrerClass != null) {
+							postconditionType = specPostconditionType(classLoader, specReferrerClass, name, desc);
+							if (inlineSpecs && options.samplingRate(specReferrerClass, name) == 1 && (access & (ACC_ABSTRACT | ACC_NATIVE)) == 0 && !outlinedMethods.containsKey(name + desc))
+								inliner = newSpecInliner(classLoader, specClassName(classLoader, specReferrerClass), name+"Spec",
+										specMethodForInstanceMethod(specReferrerClass, name, desc, postconditionType).getDescriptor(), className, Type.getReturnType(desc));
+						}
+						// Interfaces get no wrappers; calls of their methods go through checked call sites instead.
+						if (Objects.equals(specReferrerClass, className) && !options.checkedCallSites && (classAccess & ACC_INTERFACE) == 0) {
 							todoActions.add(() -> {
 								int wrapperAccess = access & (ACC_PRIVATE | ACC_PROTECTED | ACC_PUBLIC) | ACC_STATIC;
 								WrapperMethodInfo info = new WrapperMethodInfo(className, methodName, desc);
@@ -287,44 +1029,59 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 								
 								wrapperVisitor.visitCode();
 								
-								{
-									int index = 0;
-									for (Type argType : wrapperArgumentTypes) {
-										wrapperVisitor.visitVarInsn(argType.getOpcode(ILOAD), index);
-										index += argType.getSize();
+								// If the receiver's class is exactly this class, the callee's prologue checks the same spec, so the wrapper need not.
+								// Otherwise, the callee may check a refined spec, and the wrapper checks the spec the caller was written against.
+								// Class constants need Java 5 class files; native methods have no prologue.
+								boolean mayElide = classVersion >= V1_5 && (classAccess & (ACC_INTERFACE | ACC_ABSTRACT)) == 0 && (access & (ACC_ABSTRACT | ACC_NATIVE)) == 0;
+								if (mayElide) {
+									Label checkSpec = new Label();
+									wrapperVisitor.visitVarInsn(ALOAD, 0);
+									wrapperVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;", false);
+									wrapperVisitor.visitLdcInsn(Type.getObjectType(className));
+									wrapperVisitor.visitJumpInsn(IF_ACMPNE, checkSpec);
+									loadArguments(wrapperVisitor, wrapperArgumentTypes);
+									wrapperVisitor.visitMethodInsn(INVOKEVIRTUAL, className, methodName, desc, false);
+									wrapperVisitor.visitInsn(info.wrappeeReturnType.getOpcode(IRETURN));
+									wrapperVisitor.visitLabel(checkSpec);
+									if (classVersion >= V1_6) {
+										Object[] locals = new Object[wrapperArgumentTypes.length];
+										for (int i = 0; i < locals.length; i++)
+											locals[i] = frameType(wrapperArgumentTypes[i]);
+										wrapperVisitor.visitFrame(F_NEW, locals.length, locals, 0, new Object[0]);
 									}
 								}
-								Type postconditionType = postconditionTypeForReturnType(info.wrappeeReturnType);
+								
+								loadArguments(wrapperVisitor, wrapperArgumentTypes);
+								Type postconditionType = specPostconditionType(classLoader, className, methodName, desc);
 								String specMethodDescriptor = Type.getMethodDescriptor(postconditionType, wrapperArgumentTypes);
-								wrapperVisitor.visitMethodInsn(INVOKESTATIC, className+"Spec", methodName+"Spec", specMethodDescriptor, false);
+								invokeSpec(wrapperVisitor, className, methodName, methodName+"Spec", specMethodDescriptor);
 								
-								int size;
-								{
-									int index = 0;
-									for (Type argType : wrapperArgumentTypes) {
-										wrapperVisitor.visitVarInsn(argType.getOpcode(ILOAD), index);
-										index += argType.getSize();
-									}
-									size = index;
-								}
-								boolean isInterface = (classAccess & ACC_INTERFACE) != 0;
-								wrapperVisitor.visitMethodInsn(isInterface ? INVOKEINTERFACE : INVOKEVIRTUAL, className, methodName, desc, isInterface);
+								int size = loadArguments(wrapperVisitor, wrapperArgumentTypes);
+								wrapperVisitor.visitMethodInsn(INVOKEVIRTUAL, className, methodName, desc, false);
 								
 								if (info.wrappeeReturnType == Type.VOID_TYPE) {
-									wrapperVisitor.visitMethodInsn(INVOKEINTERFACE, "java/lang/Runnable", "run", "()V", true);
+									checkPostcondition(wrapperVisitor, postconditionType, classLoader, className, methodName+"Spec");
 									wrapperVisitor.visitInsn(RETURN);
 								} else {
 									if (info.wrappeeReturnType.getSize() == 2)
 										wrapperVisitor.visitInsn(DUP2_X1);
 									else
 										wrapperVisitor.visitInsn(DUP_X1);
-									// Box the return value
-									box(wrapperVisitor, info.wrappeeReturnType);
-									wrapperVisitor.visitMethodInsn(INVOKEINTERFACE, "java/util/function/Consumer", "accept", "(Ljava/lang/Object;)V", true);
+									convertForPostcondition(wrapperVisitor, postconditionType, info.wrappeeReturnType);
+									// Move the postcondition above the converted return value.
+									int convertedSize = postconditionArgumentType(postconditionType).getSize();
+									if (convertedSize == 2) {
+										wrapperVisitor.visitInsn(DUP2_X1);
+										wrapperVisitor.visitInsn(POP2);
+									} else {
+										wrapperVisitor.visitInsn(SWAP);
+									}
+									checkPostcondition(wrapperVisitor, postconditionType, classLoader, className, methodName+"Spec");
 									wrapperVisitor.visitInsn(info.wrappeeReturnType.getOpcode(IRETURN));
 								}
 								
-								wrapperVisitor.visitMaxs(Math.max((Type.getArgumentsAndReturnSizes(desc) >> 2) + 2, 1 + 2 * info.wrappeeReturnType.getSize()), size);
+								// At most, the stack holds the return value, the postcondition and two copies of the converted return value.
+								wrapperVisitor.visitMaxs(Math.max((Type.getArgumentsAndReturnSizes(desc) >> 2) + 2, info.wrappeeReturnType.getSize() + 1 + 2 * postconditionArgumentType(postconditionType).getSize()), size);
 								wrapperVisitor.visitEnd();
 							});
 						}
@@ -334,8 +1091,16 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 			
 			@Override
 			public void visitCode() {
+				if (specReferrerClass != null && !methodName.equals("<init>") && classVersion >= V1_5) {
+					AnnotationVisitor checksSpec = mv.visitAnnotation("Lcodespecs/ChecksSpec;", true);
+					checksSpec.visit("value", specClassName(classLoader, specReferrerClass).replace('/', '.') + "." + methodName + "Spec");
+					checksSpec.visitEnd();
+				}
 				super.visitCode();
-				if (specReferrerClass != null) {
+				if (inliner != null) {
+					inliner.allocateLocals(sorter, mv);
+					inliner.emitPrologue(mv);
+				} else if (specReferrerClass != null) {
 					if (methodName.equals("<init>")) {
 						Type[] argTypes = Type.getArgumentTypes(desc);
 						int index = 1;
@@ -345,7 +1110,7 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 						}
 						Type postconditionType = Type.getType("Ljava/util/function/Consumer;");
 						String specMethodDescriptor = Type.getMethodDescriptor(postconditionType, argTypes);
-						super.visitMethodInsn(INVOKESTATIC, className+"Spec", "constructorSpec", specMethodDescriptor, false);
+						invokeSpec(mv, className, methodName, "constructorSpec", specMethodDescriptor);
 						postconditionLocalVarId = sorter.newLocal(postconditionType);
 						super.visitVarInsn(ASTORE, postconditionLocalVarId);
 					} else {
@@ -357,12 +1122,11 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 							index += argType.getSize();
 						}
 						returnType = Type.getReturnType(desc);
-						Type postconditionType = postconditionTypeForReturnType(returnType);
 						ArrayList<Type> specMethodArgTypes = new ArrayList<>();
 						specMethodArgTypes.add(Type.getType("L" + specReferrerClass + ";"));
 						specMethodArgTypes.addAll(Arrays.asList(argTypes));
 						String specMethodDescriptor = Type.getMethodDescriptor(postconditionType, specMethodArgTypes.toArray(new Type[argTypes.length + 1]));
-						super.visitMethodInsn(INVOKESTATIC, specReferrerClass+"Spec", methodName+"Spec", specMethodDescriptor, false);
+						invokeSpec(mv, specReferrerClass, methodName, methodName+"Spec", specMethodDescriptor);
 						postconditionLocalVarId = sorter.newLocal(postconditionType);
 						super.visitVarInsn(ASTORE, postconditionLocalVarId);
 					}
@@ -371,26 +1135,27 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 			
 			@Override
 			public void visitInsn(int opcode) {
-				if (specReferrerClass != null) {
+				if (inliner != null) {
+					if (opcode >= IRETURN && opcode <= RETURN && inliner.hasEpilogue()) {
+						inliner.emitReturn(mv, opcode);
+						return;
+					}
+				} else if (specReferrerClass != null) {
 					if (methodName.equals("<init>")) {
 						if (opcode == RETURN) {
-							super.visitVarInsn(ALOAD, postconditionLocalVarId);
 							super.visitVarInsn(ALOAD, 0);
-							super.visitMethodInsn(INVOKEINTERFACE, "java/util/function/Consumer", "accept", "(Ljava/lang/Object;)V", true);
+							super.visitVarInsn(ALOAD, postconditionLocalVarId);
+							checkPostcondition(mv, Type.getObjectType("java/util/function/Consumer"), classLoader, className, "constructorSpec");
 						}
 					} else {
 						if (opcode == IRETURN || opcode == LRETURN || opcode == FRETURN || opcode == DRETURN || opcode == ARETURN) {
-							if (returnType.getSize() == 2)
-								super.visitInsn(DUP2);
-							else
-								super.visitInsn(DUP);
-							box(mv, returnType);
+							super.visitInsn(returnType.getSize() == 2 ? DUP2 : DUP);
+							convertForPostcondition(mv, postconditionType, returnType);
 							super.visitVarInsn(ALOAD, postconditionLocalVarId);
-							super.visitInsn(SWAP);
-							super.visitMethodInsn(INVOKEINTERFACE, "java/util/function/Consumer", "accept", "(Ljava/lang/Object;)V", true);
+							checkPostcondition(mv, postconditionType, classLoader, specReferrerClass, methodName+"Spec");
 						} else if (opcode == RETURN) {
 							super.visitVarInsn(ALOAD, postconditionLocalVarId);
-							super.visitMethodInsn(INVOKEINTERFACE, "java/lang/Runnable", "run", "()V", true);
+							checkPostcondition(mv, postconditionType, classLoader, specReferrerClass, methodName+"Spec");
 						}
 					}
 				}
@@ -402,7 +1167,16 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 					String desc, boolean itf) {
 				if (opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKEINTERFACE) {
 					String wrapperClass = getSpecReferrerClass(classLoader, owner, name, desc);
-					if (wrapperClass != null) {
+					// A wrapper for an interface method would make one invokeinterface instruction, and its receiver type profile, serve all callers,
+					// so calls of interface methods with specs go through checked call sites, which the JIT compiler inlines into each caller.
+					// Nor does a class defined by a class loader out of scope get wrappers.
+					if (wrapperClass != null && (options.checkedCallSites || getClassInfo(classLoader, wrapperClass).isInterface || !isDefinedByLoaderInScope(classLoader, wrapperClass))) {
+						// Class files older than Java 7 cannot use invokedynamic; their calls are checked only in the callee.
+						if (classVersion >= V1_7) {
+							invokeCheckedCall(mv, opcode, owner, name, desc, wrapperClass);
+							return;
+						}
+					} else if (wrapperClass != null) {
 						Method wrapper = new WrapperMethodInfo(wrapperClass, name, desc).getMethod();
 						super.visitMethodInsn(INVOKESTATIC, wrapperClass, wrapper.getName(), wrapper.getDescriptor(), itf);
 						return;
@@ -413,16 +1187,45 @@ public class CodeSpecsWeaver implements ClassFileTransformer {
 			
 			@Override
 			public void visitMaxs(int maxStack, int maxLocals) {
-				if (specReferrerClass != null) {
+				if (inliner != null)
+					inliner.emitEpilogue(mv); // The class writer computes the maximums.
+				else if (specReferrerClass != null) {
 					if (methodName.equals("<init>")) {
-						maxStack = Math.max(Type.getArgumentsAndReturnSizes(desc) >> 2, maxStack + 2);
+						maxStack = Math.max(Type.getArgumentsAndReturnSizes(desc) >> 2, maxStack + 3);
 					} else {
-						maxStack = Math.max(Type.getArgumentsAndReturnSizes(desc) >> 2, maxStack + 1);
+						// The return value is duplicated and may be widened from float to double, and the postcondition and the spec name are pushed.
+						maxStack = Math.max(Type.getArgumentsAndReturnSizes(desc) >> 2, maxStack + 4);
 					}
 				}
 				super.visitMaxs(maxStack, maxLocals);
 			}
 			
+			@Override
+			public void visitEnd() {
+				super.visitEnd();
+				MethodSizeReport.Crossing outlining = outlinedMethods.get(methodName + desc);
+				if (outlining != null) {
+					if (methodName.equals("<init>"))
+						outlining.outlinedSize = wovenCode.getMaxSize(); // For other methods, the outlining visitor records the size of the method that calls the code.
+					return;
+				}
+				int originalSize = originalCode.getMaxSize();
+				int wovenSize = wovenCode.getMaxSize();
+				MethodSizeReport.Threshold threshold = MethodSizeReport.Threshold.crossed(originalSize, wovenSize);
+				if (threshold == null)
+					return;
+				MethodSizeReport.Crossing crossing = new MethodSizeReport.Crossing(className, methodName, desc, originalSize, wovenSize, threshold);
+				// An inlined spec goes back out of line only past FreqInlineSize, since hot call sites still inline the method, and inlining the spec saves its allocations.
+				// Otherwise, the code moves into a separate method, which retransformation cannot add;
+				// the spec check and the call of that method, which takes up to two bytes to load each argument, must then fit within the threshold.
+				if (inliner != null)
+					crossing.outline = threshold != MethodSizeReport.Threshold.MAX_INLINE_SIZE;
+				else
+					crossing.outline = specReferrerClass != null && !methodName.equals("<init>") && !options.checkedCallSites && (classAccess & ACC_INTERFACE) == 0
+							&& wovenSize - originalSize + 2 * (Type.getArgumentsAndReturnSizes(desc) >> 2) + 4 <= threshold.size;
+				crossings.add(crossing);
+			}
+			
 		}
 		
 	}
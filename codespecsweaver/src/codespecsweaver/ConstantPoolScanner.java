@@ -0,0 +1,171 @@
+package codespecsweaver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+
+/**
+ * Decides from the constant pool alone whether a class file can possibly need weaving.
+ *
+ * A class needs weaving only if it mentions the SeeCodeSpecs annotation, is in a package with specs, or calls a method whose owner has specs.
+ * All of these show up in the constant pool, so we can reject the vast majority of classes without building a ClassReader.
+ */
+class ConstantPoolScanner {
+	static final String SEE_CODE_SPECS_DESC = "Lcodespecs/SeeCodeSpecs;";
+	/** The name of the class attribute the weaver adds to the classes it has woven. */
+	static final String WOVEN_ATTRIBUTE = "CodeSpecsWoven";
+
+	private static final byte[] SEE_CODE_SPECS_DESC_BYTES = SEE_CODE_SPECS_DESC.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WOVEN_ATTRIBUTE_BYTES = WOVEN_ATTRIBUTE.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Returns false if the class has been woven already, or if it does not mention SeeCodeSpecs, packageHasSpecs does not hold for the class itself,
+	 * and ownerHasSpecs does not hold for the owner of any method it references.
+	 * Returns true if the class file is malformed, so that ASM gets to report the problem.
+	 */
+	static boolean mayNeedWeaving(byte[] b, Predicate<String> packageHasSpecs, Predicate<String> ownerHasSpecs) {
+		try {
+			boolean mentionsSeeCodeSpecs = false;
+			int wovenAttributeIndex = 0;
+			int count = readUnsignedShort(b, 8);
+			int[] offsets = new int[count];
+			int[] methodRefClassIndices = new int[count];
+			int methodRefCount = 0;
+			int offset = 10;
+			for (int i = 1; i < count; i++) {
+				offsets[i] = offset;
+				int tag = b[offset];
+				switch (tag) {
+				case 1: // Utf8
+					int length = readUnsignedShort(b, offset + 1);
+					if (utf8Equals(b, offset + 3, length, WOVEN_ATTRIBUTE_BYTES))
+						wovenAttributeIndex = i;
+					if (utf8Equals(b, offset + 3, length, SEE_CODE_SPECS_DESC_BYTES))
+						mentionsSeeCodeSpecs = true;
+					offset += 3 + length;
+					break;
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+					methodRefClassIndices[methodRefCount++] = readUnsignedShort(b, offset + 1);
+					offset += 5;
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					offset += 5;
+					break;
+				case 5: // Long
+				case 6: // Double
+					offset += 9;
+					i++;
+					break;
+				case 15: // MethodHandle
+					offset += 4;
+					break;
+				case 7: // Class
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					offset += 3;
+					break;
+				default:
+					return true;
+				}
+			}
+			// The name may also occur as a string literal or a member name; only the class attribute marks the class as woven.
+			if (wovenAttributeIndex != 0 && hasClassAttribute(b, offset, wovenAttributeIndex))
+				return false;
+			if (mentionsSeeCodeSpecs)
+				return true;
+			String thisClass = readUtf8(b, offsets[readUnsignedShort(b, offsets[readUnsignedShort(b, offset + 2)] + 1)]);
+			if (!thisClass.startsWith("java/") && packageHasSpecs.test(thisClass))
+				return true;
+			boolean[] checked = new boolean[count];
+			for (int i = 0; i < methodRefCount; i++) {
+				int classIndex = methodRefClassIndices[i];
+				if (checked[classIndex])
+					continue;
+				checked[classIndex] = true;
+				String owner = readUtf8(b, offsets[readUnsignedShort(b, offsets[classIndex] + 1)]);
+				if (owner.startsWith("java/") || owner.startsWith("["))
+					continue; // Bootstrap classes have no contracts; array clone() calls have no owner class file.
+				if (ownerHasSpecs.test(owner))
+					return true;
+			}
+			return false;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Returns whether the class file, whose constant pool ends at the given offset, has a class attribute with the given name index.
+	 */
+	private static boolean hasClassAttribute(byte[] b, int offset, int nameIndex) {
+		offset += 8 + 2 * readUnsignedShort(b, offset + 6); // Access flags, this class, superclass, interfaces.
+		for (int table = 0; table < 2; table++) { // Fields, then methods.
+			int memberCount = readUnsignedShort(b, offset);
+			offset += 2;
+			for (int i = 0; i < memberCount; i++)
+				offset = skipAttributes(b, offset + 6);
+		}
+		int attributeCount = readUnsignedShort(b, offset);
+		offset += 2;
+		for (int i = 0; i < attributeCount; i++) {
+			if (readUnsignedShort(b, offset) == nameIndex)
+				return true;
+			offset += 6 + readInt(b, offset + 2);
+		}
+		return false;
+	}
+
+	private static int skipAttributes(byte[] b, int offset) {
+		int attributeCount = readUnsignedShort(b, offset);
+		offset += 2;
+		for (int i = 0; i < attributeCount; i++)
+			offset += 6 + readInt(b, offset + 2);
+		return offset;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (readUnsignedShort(b, offset) << 16) | readUnsignedShort(b, offset + 2);
+	}
+
+	private static int readUnsignedShort(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+	}
+
+	private static boolean utf8Equals(byte[] b, int offset, int length, byte[] expected) {
+		if (length != expected.length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (b[offset + i] != expected[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Decodes the modified UTF-8 constant at the given constant pool entry offset.
+	 */
+	private static String readUtf8(byte[] b, int offset) {
+		int length = readUnsignedShort(b, offset + 1);
+		int index = offset + 3;
+		int end = index + length;
+		char[] chars = new char[length];
+		int n = 0;
+		while (index < end) {
+			int c = b[index++] & 0xFF;
+			if (c < 0x80) {
+				chars[n++] = (char)c;
+			} else if (c < 0xE0) {
+				chars[n++] = (char)(((c & 0x1F) << 6) | (b[index++] & 0x3F));
+			} else {
+				chars[n++] = (char)(((c & 0x0F) << 12) | ((b[index++] & 0x3F) << 6) | (b[index++] & 0x3F));
+			}
+		}
+		return new String(chars, 0, n);
+	}
+}
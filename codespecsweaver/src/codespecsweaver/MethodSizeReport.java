@@ -0,0 +1,116 @@
+package codespecsweaver;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Tracks the methods whose bytecode weaving has grown past one of HotSpot's inlining thresholds.
+ *
+ * HotSpot inlines a method of at most MaxInlineSize bytes (35 by default) at any call site, and one of at most FreqInlineSize bytes
+ * (325 by default) only at hot call sites, and does not compile methods of more than 8000 bytes. Since a method that callers no longer inline
+ * costs them much more than the check it gained, the weaver then weaves the method again: with its spec called rather than inlined, and with its code
+ * moved into a separate method, where that leaves a small enough method to check the spec and call it; see Weaver.visitMethod.
+ * The stats agent option prints the methods that crossed a threshold.
+ */
+class MethodSizeReport {
+	enum Threshold {
+		MAX_INLINE_SIZE("MaxInlineSize", 35),
+		FREQ_INLINE_SIZE("FreqInlineSize", 325),
+		HUGE_METHOD_LIMIT("HugeMethodLimit", 8000);
+
+		final String flag;
+		final int size;
+
+		Threshold(String flag, int defaultSize) {
+			this.flag = flag;
+			this.size = vmOption(flag, defaultSize);
+		}
+
+		/**
+		 * Returns the value of the given HotSpot flag in this JVM, which the weaver assumes to match the JVM that runs the woven code.
+		 */
+		private static int vmOption(String flag, int defaultValue) {
+			try {
+				return Integer.parseInt(ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).getVMOption(flag).getValue());
+			} catch (Exception | LinkageError e) {
+				return defaultValue; // Not a HotSpot JVM, or not a product flag, as HugeMethodLimit is not.
+			}
+		}
+
+		/** Identifies the thresholds, which affect the weaving result. */
+		static String fingerprint() {
+			StringBuilder fingerprint = new StringBuilder();
+			for (Threshold threshold : values())
+				fingerprint.append(threshold.flag).append('=').append(threshold.size).append(',');
+			return fingerprint.toString();
+		}
+
+		/**
+		 * Returns the largest threshold that a method of the given original size is within and one of the given woven size is not, or null.
+		 */
+		static Threshold crossed(int originalSize, int wovenSize) {
+			Threshold crossed = null;
+			for (Threshold threshold : values())
+				if (originalSize <= threshold.size && threshold.size < wovenSize)
+					crossed = threshold;
+			return crossed;
+		}
+	}
+
+	static class Crossing {
+		final String className;
+		final String methodName;
+		final String desc;
+		final int originalSize;
+		final int wovenSize;
+		final Threshold threshold;
+		/** Whether the weaver should weave the method again with its spec out of line and, unless it is a constructor, its code in a separate method. */
+		boolean outline;
+		/** The size of the method once woven again, or -1 if it is not. */
+		int outlinedSize = -1;
+
+		Crossing(String className, String methodName, String desc, int originalSize, int wovenSize, Threshold threshold) {
+			this.className = className;
+			this.methodName = methodName;
+			this.desc = desc;
+			this.originalSize = originalSize;
+			this.wovenSize = wovenSize;
+			this.threshold = threshold;
+		}
+
+		@Override
+		public String toString() {
+			String message = className.replace('/', '.') + "." + methodName + desc + " grew from " + originalSize + " to " + wovenSize + " bytes, past "
+					+ threshold.flag + " (" + threshold.size + ")";
+			if (outlinedSize >= 0)
+				message += (methodName.equals("<init>") ? "; called its spec out of line" : "; moved its code to " + outlinedBodyName(methodName)) + ", leaving " + outlinedSize + " bytes"
+						+ (outlinedSize > threshold.size ? ", still past " + threshold.flag : "");
+			return message;
+		}
+	}
+
+	/** Returns the name of the method that receives the code of the given method when it is outlined. */
+	static String outlinedBodyName(String methodName) {
+		return methodName + "$codespecs$body";
+	}
+
+	private final ConcurrentLinkedQueue<Crossing> crossings = new ConcurrentLinkedQueue<>();
+
+	void addAll(Collection<Crossing> classCrossings) {
+		crossings.addAll(classCrossings);
+	}
+
+	String report() {
+		List<Crossing> sorted = new ArrayList<>(crossings);
+		sorted.sort((c1, c2) -> (c1.className + "." + c1.methodName + c1.desc).compareTo(c2.className + "." + c2.methodName + c2.desc));
+		StringBuilder report = new StringBuilder("codespecsweaver: weaving pushed " + sorted.size() + " methods past an inlining threshold");
+		for (Crossing crossing : sorted)
+			report.append("\n  ").append(crossing);
+		return report.toString();
+	}
+}
@@ -0,0 +1,209 @@
+package codespecsweaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Weaves a jar file or class directory ahead of time, so that the woven classes can be run without the agent.
+ *
+ * Usage: java -cp codespecsweaver.jar codespecsweaver.OfflineWeaver [-cp classpath] [-threads n] [-options agentoptions] [-selfContained] input output.jar
+ *
+ * The input is a jar file or a directory of class files. The classpath lists the other classes the input refers to,
+ * so that the weaver can find their specs. The output jar has the same entries as the input, with the class files woven.
+ * With -selfContained, which promises that the input holds the spec classes of all of its classes, the output jar also gets
+ * a META-INF/codespecs.idx file listing the spec classes in the jar (see SpecIndex).
+ */
+public class OfflineWeaver {
+
+	static class Entry {
+		final String name;
+		final byte[] bytes;
+
+		Entry(String name, byte[] bytes) {
+			this.name = name;
+			this.bytes = bytes;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		List<URL> classpath = new ArrayList<>();
+		int threads = Runtime.getRuntime().availableProcessors();
+		String agentOptions = null;
+		boolean selfContained = false;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (args[i].equals("-selfContained")) {
+				selfContained = true;
+				i--;
+				continue;
+			}
+			if (i + 1 == args.length)
+				usage();
+			switch (args[i]) {
+			case "-cp":
+			case "-classpath":
+				for (String element : args[i + 1].split(File.pathSeparator))
+					if (!element.isEmpty())
+						classpath.add(toURL(Paths.get(element)));
+				break;
+			case "-threads":
+				threads = Integer.parseInt(args[i + 1]);
+				break;
+			case "-options":
+				agentOptions = args[i + 1];
+				break;
+			default:
+				usage();
+			}
+		}
+		if (args.length - i != 2)
+			usage();
+		Path input = Paths.get(args[i]);
+		Path output = Paths.get(args[i + 1]);
+
+		CodeSpecsWeaver weaver = new CodeSpecsWeaver(WeaverOptions.parse(agentOptions));
+		classpath.add(0, toURL(input));
+		long start = System.nanoTime();
+		try (URLClassLoader loader = new URLClassLoader(classpath.toArray(new URL[classpath.size()]), null)) {
+			List<Entry> entries = readEntries(input);
+			List<Entry> wovenEntries = weaveAll(weaver, loader, entries, threads);
+			if (selfContained) {
+				wovenEntries.removeIf(entry -> entry.name.equals(SpecIndex.RESOURCE_NAME));
+				wovenEntries.add(new Entry(SpecIndex.RESOURCE_NAME, SpecIndex.write(specClassNames(weaver, loader, entries))));
+			}
+			writeJar(output, wovenEntries);
+		}
+		System.err.println(weaver.statsMessage() + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+		if (weaver.options.stats)
+			System.err.println(weaver.methodSizes.report());
+		if (weaver.options.timing)
+			System.err.println(weaver.timer.report());
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java -cp codespecsweaver.jar codespecsweaver.OfflineWeaver [-cp classpath] [-threads n] [-options agentoptions] [-selfContained] input output.jar");
+		System.exit(1);
+	}
+
+	private static URL toURL(Path path) {
+		try {
+			return path.toUri().toURL();
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(path.toString(), e);
+		}
+	}
+
+	static List<Entry> readEntries(Path input) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		if (Files.isDirectory(input)) {
+			List<Path> files;
+			try (Stream<Path> paths = Files.walk(input)) {
+				files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+			}
+			for (Path file : files)
+				entries.add(new Entry(input.relativize(file).toString().replace(File.separatorChar, '/'), Files.readAllBytes(file)));
+		} else {
+			try (JarFile jarFile = new JarFile(input.toFile())) {
+				for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+					JarEntry jarEntry = e.nextElement();
+					if (jarEntry.isDirectory())
+						continue;
+					try (InputStream is = jarFile.getInputStream(jarEntry)) {
+						entries.add(new Entry(jarEntry.getName(), CodeSpecsWeaver.readAllBytes(is)));
+					}
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Weaves the class file entries in parallel. The result lists the entries in the same order as the input.
+	 */
+	static List<Entry> weaveAll(CodeSpecsWeaver weaver, ClassLoader loader, List<Entry> entries, int threads) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Entry>> futures = new ArrayList<>(entries.size());
+			for (Entry entry : entries) {
+				futures.add(executor.submit(() -> {
+					if (!entry.name.endsWith(".class") || entry.name.endsWith("package-info.class") || entry.name.endsWith("module-info.class"))
+						return entry;
+					if (!weaver.options.classInScope(entry.name.substring(0, entry.name.length() - ".class".length())))
+						return entry;
+					byte[] result = weaver.weave(loader, entry.bytes);
+					return result == null ? entry : new Entry(entry.name, result);
+				}));
+			}
+			List<Entry> result = new ArrayList<>(entries.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					result.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Weaving " + entries.get(i).name + " failed", e.getCause());
+				}
+			}
+			return result;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the spec classes of the classes among the given entries, which must be among the given entries too.
+	 */
+	static List<String> specClassNames(CodeSpecsWeaver weaver, ClassLoader loader, List<Entry> entries) {
+		Set<String> entryNames = new HashSet<>();
+		for (Entry entry : entries)
+			entryNames.add(entry.name);
+		Set<String> specClassNames = new TreeSet<>();
+		for (Entry entry : entries) {
+			if (!entry.name.endsWith(".class") || entry.name.endsWith("package-info.class") || entry.name.endsWith("module-info.class"))
+				continue;
+			String className = entry.name.substring(0, entry.name.length() - ".class".length());
+			if (weaver.hasSpecs(loader, className)) {
+				String specClassName = weaver.specClassName(loader, className);
+				if (entryNames.contains(specClassName + ".class"))
+					specClassNames.add(specClassName);
+				else if (weaver.getClassInfo(loader, specClassName).found)
+					throw new IllegalArgumentException("-selfContained, but spec class " + specClassName + " of " + className + " is not in the input");
+			}
+		}
+		return new ArrayList<>(specClassNames);
+	}
+
+	static void writeJar(Path output, List<Entry> entries) throws IOException {
+		List<Entry> sortedEntries = new ArrayList<>(entries);
+		// JarInputStream finds the manifest only if it comes first.
+		sortedEntries.sort((e1, e2) -> Boolean.compare(!e1.name.equals(JarFile.MANIFEST_NAME), !e2.name.equals(JarFile.MANIFEST_NAME)));
+		try (OutputStream os = Files.newOutputStream(output); JarOutputStream jar = new JarOutputStream(os)) {
+			for (Entry entry : sortedEntries) {
+				jar.putNextEntry(new JarEntry(entry.name));
+				jar.write(entry.bytes);
+				jar.closeEntry();
+			}
+		}
+	}
+}
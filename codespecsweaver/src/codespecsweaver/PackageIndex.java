@@ -0,0 +1,76 @@
+package codespecsweaver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The classes of a package as seen by a class loader, listed in one pass over the directories and jar files that hold the package,
+ * so that the weaver need not probe for each spec class of a spec package separately.
+ *
+ * Class loaders cannot list packages in general. The index lists the locations that ClassLoader.getResources finds for the package directory;
+ * if it finds none, or one it cannot list, the index is unknown and the weaver probes as usual.
+ * Jar files whose entries omit the package directory do not show up; jar tools include it by default.
+ */
+class PackageIndex {
+	/** The internal names of the classes in the package, or null if unknown. */
+	final Set<String> classNames;
+
+	PackageIndex(Set<String> classNames) {
+		this.classNames = classNames;
+	}
+
+	boolean mayContain(String className) {
+		return classNames == null || classNames.contains(className);
+	}
+
+	static PackageIndex build(ClassLoader classLoader, String packageName) {
+		Set<String> classNames = new HashSet<>();
+		try {
+			Enumeration<URL> urls = classLoader.getResources(packageName);
+			if (!urls.hasMoreElements())
+				return new PackageIndex(null);
+			while (urls.hasMoreElements()) {
+				URL url = urls.nextElement();
+				if (url.getProtocol().equals("file")) {
+					try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(url.toURI()), "*.class")) {
+						for (Path file : files) {
+							String fileName = file.getFileName().toString();
+							classNames.add(packageName + "/" + fileName.substring(0, fileName.length() - ".class".length()));
+						}
+					}
+				} else if (url.getProtocol().equals("jar")) {
+					URLConnection connection = url.openConnection();
+					if (!(connection instanceof JarURLConnection))
+						return new PackageIndex(null);
+					connection.setUseCaches(false);
+					try (JarFile jarFile = ((JarURLConnection)connection).getJarFile()) {
+						String prefix = packageName + "/";
+						for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+							String name = e.nextElement().getName();
+							if (name.startsWith(prefix) && name.endsWith(".class") && name.indexOf('/', prefix.length()) < 0)
+								classNames.add(name.substring(0, name.length() - ".class".length()));
+						}
+					}
+				} else {
+					return new PackageIndex(null);
+				}
+			}
+		} catch (IOException | UncheckedIOException | URISyntaxException | IllegalArgumentException e) {
+			return new PackageIndex(null);
+		}
+		return new PackageIndex(classNames);
+	}
+}
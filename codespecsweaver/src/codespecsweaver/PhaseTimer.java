@@ -0,0 +1,82 @@
+package codespecsweaver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how much time the weaver spends in each phase, for the timing agent option.
+ *
+ * Phases nest: entering a phase pauses the enclosing one, so that each phase is charged only for its own time
+ * and the phase times add up to the total time spent in the weaver.
+ */
+class PhaseTimer {
+	enum Phase {
+		RESOURCE_IO("resource I/O"),
+		PARSING("parsing"),
+		HIERARCHY_WALK("hierarchy walk"),
+		WEAVING("weaving"),
+		SERIALIZATION("serialization"),
+		CACHE("cache");
+
+		final String description;
+
+		Phase(String description) {
+			this.description = description;
+		}
+	}
+
+	static class ThreadState {
+		Phase phase;
+		long since;
+	}
+
+	final boolean enabled;
+	private final LongAdder[] nanos = new LongAdder[Phase.values().length];
+	private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+
+	PhaseTimer(boolean enabled) {
+		this.enabled = enabled;
+		for (int i = 0; i < nanos.length; i++)
+			nanos[i] = new LongAdder();
+	}
+
+	/**
+	 * Enters the given phase and returns the phase to pass to exit, or returns null if timing is disabled.
+	 */
+	Phase enter(Phase phase) {
+		if (!enabled)
+			return null;
+		ThreadState state = threadState.get();
+		Phase previous = state.phase;
+		switchTo(state, phase);
+		return previous;
+	}
+
+	/**
+	 * Returns to the phase returned by the matching call of enter.
+	 */
+	void exit(Phase previous) {
+		if (!enabled)
+			return;
+		ThreadState state = threadState.get();
+		switchTo(state, previous);
+	}
+
+	private void switchTo(ThreadState state, Phase phase) {
+		long now = System.nanoTime();
+		if (state.phase != null)
+			nanos[state.phase.ordinal()].add(now - state.since);
+		state.phase = phase;
+		state.since = now;
+	}
+
+	String report() {
+		StringBuilder phases = new StringBuilder();
+		long total = 0;
+		for (Phase phase : Phase.values()) {
+			long phaseNanos = nanos[phase.ordinal()].sum();
+			total += phaseNanos;
+			phases.append(", ").append(phase.description).append(' ').append(phaseNanos / 1000000).append(" ms");
+		}
+		return "codespecsweaver: spent " + total / 1000000 + " ms in the weaver" + phases;
+	}
+}
@@ -0,0 +1,102 @@
+package codespecsweaver;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of name patterns, each either included or excluded, that decides whether a name is in scope.
+ * A pattern that ends with * matches the names that start with the rest of the pattern. Any other pattern matches the name itself,
+ * and the names it is a prefix of up to a boundary: a package separator / or ., or a nested class separator $. So x.y.Z matches x.y.Z and x.y.Z$Inner,
+ * but not x.y.ZSpec. The longest matching pattern applies; if there is none, the name is in scope unless some pattern is included.
+ *
+ * The trie is built when the options are parsed. A lookup walks the name once, without allocating.
+ */
+class PrefixTrie {
+	private static final int NONE = 0;
+	private static final int INCLUDE = 1;
+	private static final int EXCLUDE = 2;
+
+	private static class Node {
+		char[] labels = new char[0];
+		Node[] children = new Node[0];
+		/** The verdict of the pattern that ends here, which applies at a boundary. */
+		int verdict = NONE;
+		/** The verdict of the pattern that ends here followed by *, which applies to any continuation. */
+		int wildcardVerdict = NONE;
+
+		Node child(char c) {
+			for (int i = 0; i < labels.length; i++)
+				if (labels[i] == c)
+					return children[i];
+			return null;
+		}
+
+		Node addChild(char c) {
+			Node child = child(c);
+			if (child == null) {
+				int n = labels.length;
+				labels = Arrays.copyOf(labels, n + 1);
+				children = Arrays.copyOf(children, n + 1);
+				labels[n] = c;
+				children[n] = child = new Node();
+			}
+			return child;
+		}
+	}
+
+	private final Node root = new Node();
+	private boolean hasIncludes;
+	/** The prefixes, for the weaving fingerprint. */
+	private final Map<String, Boolean> prefixes = new TreeMap<>();
+
+	void put(String pattern, boolean include) {
+		boolean wildcard = pattern.endsWith("*");
+		String prefix = wildcard ? pattern.substring(0, pattern.length() - 1) : pattern;
+		Node node = root;
+		for (int i = 0; i < prefix.length(); i++)
+			node = node.addChild(prefix.charAt(i));
+		if (wildcard)
+			node.wildcardVerdict = include ? INCLUDE : EXCLUDE;
+		else
+			node.verdict = include ? INCLUDE : EXCLUDE;
+		hasIncludes |= include;
+		prefixes.put(pattern, include);
+	}
+
+	boolean isEmpty() {
+		return prefixes.isEmpty();
+	}
+
+	boolean accepts(String name) {
+		Node node = root;
+		int verdict = verdictAt(root, name, 0);
+		for (int i = 0; i < name.length(); i++) {
+			node = node.child(name.charAt(i));
+			if (node == null)
+				break;
+			int nodeVerdict = verdictAt(node, name, i + 1);
+			if (nodeVerdict != NONE)
+				verdict = nodeVerdict;
+		}
+		return verdict == NONE ? !hasIncludes : verdict == INCLUDE;
+	}
+
+	/**
+	 * Returns the verdict of the patterns that end at the given node, for a name whose first end characters led there.
+	 */
+	private static int verdictAt(Node node, String name, int end) {
+		if (node.verdict != NONE && (end == name.length() || isBoundary(name.charAt(end))))
+			return node.verdict;
+		return node.wildcardVerdict;
+	}
+
+	private static boolean isBoundary(char c) {
+		return c == '/' || c == '.' || c == '$';
+	}
+
+	@Override
+	public String toString() {
+		return prefixes.toString();
+	}
+}
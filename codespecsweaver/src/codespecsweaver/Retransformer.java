@@ -0,0 +1,88 @@
+package codespecsweaver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Weaves or unweaves classes that are loaded already, for an agent attached to a running JVM, by retransforming them.
+ *
+ * The JVM redefines the classes passed to one retransformClasses call at a single safepoint, so we retransform
+ * a batch of options.batchSize classes at a time, and let the application run for options.batchPause milliseconds between batches.
+ */
+class Retransformer {
+	final Instrumentation instrumentation;
+	final CodeSpecsWeaver weaver;
+	final WeaverOptions options;
+
+	Retransformer(Instrumentation instrumentation, CodeSpecsWeaver weaver, WeaverOptions options) {
+		this.instrumentation = instrumentation;
+		this.weaver = weaver;
+		this.options = options;
+	}
+
+	/**
+	 * Returns the loaded classes whose class files, as provided by their class loaders, may need weaving:
+	 * the classes with specs and the classes that call methods of classes with specs.
+	 */
+	List<Class<?>> classesToWeave() {
+		CodeSource agentCodeSource = Retransformer.class.getProtectionDomain().getCodeSource();
+		List<Class<?>> classes = new ArrayList<>();
+		for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+			ClassLoader loader = c.getClassLoader();
+			if (loader == null || c.isArray() || !instrumentation.isModifiableClass(c) || c.getProtectionDomain().getCodeSource() == agentCodeSource)
+				continue;
+			String className = c.getName().replace('.', '/');
+			if (className.endsWith("package-info") || !options.loaderInScope(loader) || !options.classInScope(className))
+				continue;
+			byte[] bytes;
+			try (InputStream is = loader.getResourceAsStream(className + ".class")) {
+				if (is == null)
+					continue; // A generated class; it cannot have specs.
+				bytes = CodeSpecsWeaver.readAllBytes(is);
+			} catch (IOException e) {
+				continue;
+			}
+			if (weaver.mayNeedWeaving(loader, bytes))
+				classes.add(c);
+		}
+		return classes;
+	}
+
+	/**
+	 * Returns the loaded classes the weaver has changed.
+	 */
+	List<Class<?>> wovenClasses() {
+		List<Class<?>> classes = new ArrayList<>();
+		for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+			ClassLoader loader = c.getClassLoader();
+			if (loader != null && !c.isArray() && weaver.wovenClasses.getIfPresent(loader, c.getName().replace('.', '/')) != null)
+				classes.add(c);
+		}
+		return classes;
+	}
+
+	void retransform(List<Class<?>> classes) throws InterruptedException {
+		for (int start = 0; start < classes.size(); start += options.batchSize) {
+			if (start > 0)
+				Thread.sleep(options.batchPause);
+			List<Class<?>> batch = classes.subList(start, Math.min(classes.size(), start + options.batchSize));
+			try {
+				instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+			} catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+				// One bad class fails the whole batch. Retry the classes one at a time, so that the others are still retransformed.
+				for (Class<?> c : batch) {
+					try {
+						instrumentation.retransformClasses(c);
+					} catch (UnmodifiableClassException | RuntimeException | LinkageError e1) {
+						System.err.println("codespecsweaver: cannot retransform " + c.getName() + ": " + e1);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package codespecsweaver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The list of spec classes shipped in a jar file or class directory, read from its META-INF/codespecs.idx file.
+ *
+ * The file lists the internal names of the spec classes, one per line, and promises that the jar holds the spec classes of all of its classes.
+ * The weaver then knows that a class from the jar without a listed spec class has none, without probing the class loader for it.
+ * Since only the jar's builder can make that promise, OfflineWeaver writes the file only when told with -selfContained.
+ *
+ * Indices are cached by location rather than by class loader, so that all class loaders that load from the same jar share them.
+ */
+class SpecIndex {
+	static final String RESOURCE_NAME = "META-INF/codespecs.idx";
+	/** The index of a location without a META-INF/codespecs.idx file. */
+	static final SpecIndex NONE = new SpecIndex(null);
+
+	private static final ConcurrentHashMap<String, SpecIndex> indices = new ConcurrentHashMap<>();
+
+	/** Null for NONE. */
+	final Set<String> specClassNames;
+
+	SpecIndex(Set<String> specClassNames) {
+		this.specClassNames = specClassNames;
+	}
+
+	boolean mayContain(String specClassName) {
+		return specClassNames == null || specClassNames.contains(specClassName);
+	}
+
+	/**
+	 * Returns the location, that is, the jar file or class directory URL ending in a slash, of the given class file URL.
+	 */
+	static String locationOf(URL classFileURL, String className) {
+		String url = classFileURL.toString();
+		String suffix = className + ".class";
+		return url.endsWith(suffix) ? url.substring(0, url.length() - suffix.length()) : null;
+	}
+
+	static SpecIndex forLocation(String location) {
+		return indices.computeIfAbsent(location, SpecIndex::read);
+	}
+
+	private static SpecIndex read(String location) {
+		try (InputStream is = new URL(location + RESOURCE_NAME).openStream()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+			Set<String> specClassNames = new HashSet<>();
+			for (String line; (line = reader.readLine()) != null; ) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+					specClassNames.add(line);
+			}
+			return new SpecIndex(specClassNames);
+		} catch (IOException e) {
+			return NONE; // Typically a FileNotFoundException: the location has no index.
+		}
+	}
+
+	static byte[] write(Collection<String> specClassNames) {
+		StringBuilder contents = new StringBuilder("# Spec classes in this jar; see codespecsweaver.SpecIndex\n");
+		for (String specClassName : specClassNames)
+			contents.append(specClassName).append('\n');
+		return contents.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,475 @@
+package codespecsweaver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.LocalVariablesSorter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Inlines a spec method into the method it specifies, for option inlineSpecs.
+ *
+ * A spec method can be inlined if it has the shape javac gives to specs written as in the README: code that calls requires and computes old values,
+ * followed by return ensures(lambda) or ensures(lambda, clause), or by return null. The spec's code becomes the method's prologue, the values the lambda captures go into locals,
+ * and the lambda's body becomes an epilogue that checks the method's result, so that no postcondition object is created or called through an interface.
+ * requires(true) is dropped. Other spec methods, and spec methods that refer to their own class, or to classes in their package when the woven class
+ * is in another package, which the woven class might not be allowed to access, are called through spec sites as usual.
+ *
+ * Inlined specs, like spec sites, are skipped while checks are disabled and while the thread evaluates another spec.
+ * Since their frames change, classes with inlined specs are written with ClassWriter.COMPUTE_FRAMES.
+ */
+class SpecInliner implements Opcodes {
+	private static final String RUNTIME = "codespecs/CodeSpecsRuntime";
+	private static final Handle INLINED_CHECKS_BOOTSTRAP = new Handle(H_INVOKESTATIC, RUNTIME, "bootstrapInlinedChecks",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;");
+
+	private final String specClassName;
+	private final String specMethodName;
+	private final MethodNode spec;
+	/** The instructions of spec before this one leave the values the postcondition captures on the stack. */
+	private final AbstractInsnNode postconditionCreation;
+	private final int specParameterSize;
+	private final Type[] captureTypes;
+	/** The lambda method that implements the postcondition, or null if the spec has none. */
+	private final MethodNode postcondition;
+	/** The type of the lambda method's result parameter, or null if it has none. */
+	private final Type postconditionParameterType;
+	/** The clause passed to ensures along with the lambda, or null. */
+	private final String postconditionClause;
+	/** The type of the result the postcondition checks: the method's return type, or the class for a constructor. */
+	private final Type resultType;
+	private final boolean isConstructor;
+
+	/** The locals of the woven method that hold the spec method's locals other than its parameters. */
+	private int specLocals;
+	/** The locals of the woven method that hold the lambda method's locals, starting with the captured values. */
+	private int postconditionLocals;
+	/** Whether the prologue checked the spec, so that the epilogue must check the postcondition. */
+	private int checkedLocal;
+	private int resultLocal;
+	private final Label preStart = new Label();
+	private final Label preEnd = new Label();
+	private final Label preHandler = new Label();
+	private final Label postStart = new Label();
+	private final Label postEnd = new Label();
+	private final Label postHandler = new Label();
+	private final Label epilogue = new Label();
+
+	private SpecInliner(String specClassName, String specMethodName, MethodNode spec, AbstractInsnNode postconditionCreation, Type[] captureTypes,
+			MethodNode postcondition, Type postconditionParameterType, String postconditionClause, Type resultType, boolean isConstructor) {
+		this.specClassName = specClassName;
+		this.specMethodName = specMethodName;
+		this.spec = spec;
+		this.postconditionCreation = postconditionCreation;
+		this.specParameterSize = (Type.getArgumentsAndReturnSizes(spec.desc) >> 2) - 1; // The spec method is static.
+		this.captureTypes = captureTypes;
+		this.postcondition = postcondition;
+		this.postconditionParameterType = postconditionParameterType;
+		this.postconditionClause = postconditionClause;
+		this.resultType = resultType;
+		this.isConstructor = isConstructor;
+	}
+
+	/**
+	 * Returns an inliner for the given spec method of the given spec class into a method of the given class with the given return type,
+	 * or null if the spec method cannot be inlined.
+	 */
+	static SpecInliner create(ClassNode specClass, String specMethodName, String specMethodDesc, String className, Type returnType) {
+		MethodNode spec = findMethod(specClass, specMethodName, specMethodDesc);
+		if (spec == null || (spec.access & ACC_STATIC) == 0 || !spec.tryCatchBlocks.isEmpty())
+			return null;
+		AbstractInsnNode areturn = previousInstruction(spec.instructions.getLast());
+		if (areturn == null || areturn.getOpcode() != ARETURN)
+			return null;
+		AbstractInsnNode result = previousInstruction(areturn.getPrevious());
+		boolean isConstructor = specMethodName.equals("constructorSpec");
+		Type resultType = isConstructor ? Type.getObjectType(className) : returnType;
+		SpecInliner inliner;
+		String clause = null;
+		if (result != null && result.getOpcode() == ACONST_NULL) {
+			inliner = new SpecInliner(specClass.name, specMethodName, spec, result, new Type[0], null, null, null, resultType, isConstructor);
+		} else {
+			if (result == null || result.getOpcode() != INVOKESTATIC)
+				return null;
+			MethodInsnNode ensures = (MethodInsnNode)result;
+			if (!ensures.owner.equals("codespecs/CodeSpecs") || !ensures.name.startsWith("ensures"))
+				return null;
+			AbstractInsnNode lambda = previousInstruction(ensures.getPrevious());
+			if (Type.getArgumentTypes(ensures.desc).length == 2) {
+				if (!(lambda instanceof LdcInsnNode) || !(((LdcInsnNode)lambda).cst instanceof String))
+					return null;
+				clause = (String)((LdcInsnNode)lambda).cst;
+				lambda = previousInstruction(lambda.getPrevious());
+			}
+			if (lambda == null || lambda.getOpcode() != INVOKEDYNAMIC)
+				return null;
+			InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode)lambda;
+			if (!indy.bsm.getOwner().equals("java/lang/invoke/LambdaMetafactory") || !indy.bsm.getName().equals("metafactory") || !(indy.bsmArgs[1] instanceof Handle))
+				return null;
+			Handle implementation = (Handle)indy.bsmArgs[1];
+			if (implementation.getTag() != H_INVOKESTATIC || !implementation.getOwner().equals(specClass.name))
+				return null;
+			MethodNode postcondition = findMethod(specClass, implementation.getName(), implementation.getDesc());
+			if (postcondition == null || !postcondition.tryCatchBlocks.isEmpty() || Type.getReturnType(postcondition.desc) != Type.BOOLEAN_TYPE)
+				return null;
+			Type[] captureTypes = Type.getArgumentTypes(indy.desc);
+			Type[] parameterTypes = Type.getArgumentTypes(postcondition.desc);
+			Type postconditionParameterType;
+			if (parameterTypes.length == captureTypes.length)
+				postconditionParameterType = null;
+			else if (parameterTypes.length == captureTypes.length + 1 && canConvert(resultType, parameterTypes[captureTypes.length]))
+				postconditionParameterType = parameterTypes[captureTypes.length];
+			else
+				return null;
+			if (!isInlinable(postcondition, postcondition.instructions.getFirst(), null, 0, specClass.name, className))
+				return null;
+			inliner = new SpecInliner(specClass.name, specMethodName, spec, lambda, captureTypes, postcondition, postconditionParameterType, clause, resultType, isConstructor);
+		}
+		if (!isInlinable(spec, spec.instructions.getFirst(), inliner.postconditionCreation, inliner.specParameterSize, specClass.name, className))
+			return null;
+		return inliner;
+	}
+
+	private static MethodNode findMethod(ClassNode classNode, String name, String desc) {
+		for (Object object : classNode.methods) { // ASM 5's tree API uses raw lists.
+			MethodNode method = (MethodNode)object;
+			if (method.name.equals(name) && method.desc.equals(desc))
+				return method;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the given instruction, or the closest real instruction before it, skipping labels.
+	 */
+	private static AbstractInsnNode previousInstruction(AbstractInsnNode insn) {
+		while (insn != null && insn.getOpcode() < 0)
+			insn = insn.getPrevious();
+		return insn;
+	}
+
+	/**
+	 * Returns whether a value of type from can be passed to a postcondition that takes a value of type to, after conversion.
+	 */
+	private static boolean canConvert(Type from, Type to) {
+		boolean fromReference = from.getSort() == Type.OBJECT || from.getSort() == Type.ARRAY;
+		boolean toReference = to.getSort() == Type.OBJECT || to.getSort() == Type.ARRAY;
+		if (toReference)
+			return from.getSort() != Type.VOID;
+		if (fromReference)
+			return false;
+		return from.getOpcode(IRETURN) == to.getOpcode(IRETURN) || from == Type.FLOAT_TYPE && to == Type.DOUBLE_TYPE;
+	}
+
+	/**
+	 * Returns whether the instructions from first up to end can be copied into a method of the given class: they do not return, other than
+	 * through IRETURN in a postcondition, do not store into the first parameterSize locals, and refer to no class the woven class might not be able to access.
+	 */
+	private static boolean isInlinable(MethodNode method, AbstractInsnNode first, AbstractInsnNode end, int parameterSize, String specClassName, String className) {
+		boolean isPostcondition = end == null;
+		String specPackage = CodeSpecsWeaver.packageName(specClassName);
+		boolean samePackage = Objects.equals(specPackage, CodeSpecsWeaver.packageName(className));
+		for (AbstractInsnNode insn = first; insn != end; insn = insn.getNext()) {
+			int opcode = insn.getOpcode();
+			String owner = null;
+			switch (insn.getType()) {
+			case AbstractInsnNode.INSN:
+				if (opcode >= IRETURN && opcode <= RETURN && !(isPostcondition && opcode == IRETURN))
+					return false;
+				break;
+			case AbstractInsnNode.VAR_INSN:
+				if (opcode == RET || opcode >= ISTORE && ((VarInsnNode)insn).var < parameterSize)
+					return false;
+				break;
+			case AbstractInsnNode.IINC_INSN:
+				if (((IincInsnNode)insn).var < parameterSize)
+					return false;
+				break;
+			case AbstractInsnNode.JUMP_INSN:
+				if (opcode == JSR)
+					return false;
+				break;
+			case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+				return false;
+			case AbstractInsnNode.FIELD_INSN:
+				owner = ((FieldInsnNode)insn).owner;
+				break;
+			case AbstractInsnNode.METHOD_INSN:
+				owner = ((MethodInsnNode)insn).owner;
+				break;
+			case AbstractInsnNode.TYPE_INSN:
+				owner = ((TypeInsnNode)insn).desc;
+				break;
+			case AbstractInsnNode.MULTIANEWARRAY_INSN:
+				owner = ((MultiANewArrayInsnNode)insn).desc;
+				break;
+			case AbstractInsnNode.LDC_INSN:
+				Object constant = ((LdcInsnNode)insn).cst;
+				if (constant instanceof Type)
+					owner = ((Type)constant).getSort() == Type.METHOD ? null : ((Type)constant).getDescriptor();
+				else if (constant instanceof Handle)
+					return false;
+				break;
+			default:
+				break;
+			}
+			if (owner != null) {
+				if (owner.startsWith("[")) {
+					Type elementType = Type.getType(owner).getElementType();
+					if (elementType.getSort() != Type.OBJECT)
+						continue;
+					owner = elementType.getInternalName();
+				} else if (owner.startsWith("L") && owner.endsWith(";")) {
+					owner = Type.getType(owner).getInternalName();
+				}
+				if (owner.equals(specClassName) || !samePackage && Objects.equals(CodeSpecsWeaver.packageName(owner), specPackage))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Allocates the locals the inlined code needs. Call at the start of the method, before any other local is allocated,
+	 * since each group of locals must be consecutive, and before any other try-catch block is visited, since the inlined code's handlers
+	 * must come first to apply to it.
+	 */
+	void allocateLocals(LocalVariablesSorter sorter, MethodVisitor mv) {
+		specLocals = newLocals(sorter, spec.maxLocals - specParameterSize);
+		if (postcondition != null) {
+			postconditionLocals = newLocals(sorter, postcondition.maxLocals);
+			checkedLocal = sorter.newLocal(Type.BOOLEAN_TYPE);
+			if (!isConstructor && resultType != Type.VOID_TYPE)
+				resultLocal = sorter.newLocal(resultType);
+		}
+		mv.visitTryCatchBlock(preStart, preEnd, preHandler, null);
+		if (postcondition != null)
+			mv.visitTryCatchBlock(postStart, postEnd, postHandler, null);
+	}
+
+	private static int newLocals(LocalVariablesSorter sorter, int count) {
+		int first = -1;
+		for (int i = 0; i < count; i++) {
+			int local = sorter.newLocal(Type.INT_TYPE);
+			if (i == 0)
+				first = local;
+		}
+		return first;
+	}
+
+	/**
+	 * Emits the spec's code, which checks the precondition and stores the values the postcondition captures.
+	 */
+	void emitPrologue(MethodVisitor mv) {
+		Label skip = new Label();
+		Label body = new Label();
+		// The epilogue reads the captured values only if the prologue stored them, but the verifier needs them initialized on every path.
+		int local = postconditionLocals;
+		for (Type captureType : captureTypes) {
+			pushDefault(mv, captureType);
+			mv.visitVarInsn(captureType.getOpcode(ISTORE), local);
+			local += captureType.getSize();
+		}
+		mv.visitInvokeDynamicInsn("checksEnabled", "()Z", INLINED_CHECKS_BOOTSTRAP);
+		mv.visitJumpInsn(IFEQ, skip);
+		mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "enterSpec", "()Z", false);
+		mv.visitJumpInsn(IFEQ, skip);
+		mv.visitLabel(preStart);
+		int parameterOffset = isConstructor ? 1 : 0;
+		emitInstructions(mv, spec.instructions.getFirst(), postconditionCreation, var -> var < specParameterSize ? var + parameterOffset : specLocals + var - specParameterSize, null);
+		for (int i = captureTypes.length - 1; i >= 0; i--) {
+			local -= captureTypes[i].getSize();
+			mv.visitVarInsn(captureTypes[i].getOpcode(ISTORE), local);
+		}
+		mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "exitSpec", "()V", false);
+		mv.visitLabel(preEnd);
+		if (postcondition != null) {
+			mv.visitInsn(ICONST_1);
+			mv.visitVarInsn(ISTORE, checkedLocal);
+			mv.visitJumpInsn(GOTO, body);
+			mv.visitLabel(skip);
+			mv.visitInsn(ICONST_0);
+			mv.visitVarInsn(ISTORE, checkedLocal);
+		} else {
+			mv.visitLabel(skip);
+		}
+		mv.visitLabel(body);
+	}
+
+	/**
+	 * Returns whether a return instruction must go through the epilogue.
+	 */
+	boolean hasEpilogue() {
+		return postcondition != null;
+	}
+
+	/**
+	 * Replaces a return instruction by a jump to the epilogue.
+	 */
+	void emitReturn(MethodVisitor mv, int opcode) {
+		if (opcode != RETURN)
+			mv.visitVarInsn(resultType.getOpcode(ISTORE), resultLocal);
+		mv.visitJumpInsn(GOTO, epilogue);
+	}
+
+	/**
+	 * Emits the epilogue, which checks the postcondition and returns, and the exception handlers. Call at the end of the method.
+	 */
+	void emitEpilogue(MethodVisitor mv) {
+		if (postcondition != null) {
+			Label ret = new Label();
+			Label checked = new Label();
+			mv.visitLabel(epilogue);
+			mv.visitVarInsn(ILOAD, checkedLocal);
+			mv.visitJumpInsn(IFEQ, ret);
+			mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "enterSpec", "()Z", false);
+			mv.visitInsn(POP); // The prologue found the thread outside specs, and so it still is.
+			mv.visitLabel(postStart);
+			if (postconditionParameterType != null) {
+				if (isConstructor)
+					mv.visitVarInsn(ALOAD, 0);
+				else
+					mv.visitVarInsn(resultType.getOpcode(ILOAD), resultLocal);
+				convert(mv, resultType, postconditionParameterType);
+				int parameterLocal = postconditionLocals;
+				for (Type captureType : captureTypes)
+					parameterLocal += captureType.getSize();
+				mv.visitVarInsn(postconditionParameterType.getOpcode(ISTORE), parameterLocal);
+			}
+			emitInstructions(mv, postcondition.instructions.getFirst(), null, var -> postconditionLocals + var, checked);
+			mv.visitLabel(checked);
+			if (postconditionClause == null)
+				mv.visitInsn(ACONST_NULL);
+			else
+				mv.visitLdcInsn(postconditionClause);
+			mv.visitLdcInsn(specClassName.replace('/', '.'));
+			mv.visitLdcInsn(specMethodName);
+			mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "checkInlinedPostcondition", "(ZLjava/lang/String;Ljava/lang/String;Ljava/lang/String;)V", false);
+			mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "exitSpec", "()V", false);
+			mv.visitLabel(postEnd);
+			mv.visitLabel(ret);
+			if (isConstructor || resultType == Type.VOID_TYPE) {
+				mv.visitInsn(RETURN);
+			} else {
+				mv.visitVarInsn(resultType.getOpcode(ILOAD), resultLocal);
+				mv.visitInsn(resultType.getOpcode(IRETURN));
+			}
+			mv.visitLabel(postHandler);
+			mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "exitSpec", "()V", false);
+			mv.visitInsn(ATHROW);
+		}
+		// A separate handler, since in a constructor, the prologue runs before this is initialized.
+		mv.visitLabel(preHandler);
+		mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "exitSpec", "()V", false);
+		mv.visitInsn(ATHROW);
+	}
+
+	private static void pushDefault(MethodVisitor mv, Type type) {
+		switch (type.getSort()) {
+		case Type.LONG: mv.visitInsn(LCONST_0); break;
+		case Type.FLOAT: mv.visitInsn(FCONST_0); break;
+		case Type.DOUBLE: mv.visitInsn(DCONST_0); break;
+		case Type.OBJECT:
+		case Type.ARRAY: mv.visitInsn(ACONST_NULL); break;
+		default: mv.visitInsn(ICONST_0); break;
+		}
+	}
+
+	/**
+	 * Converts the value on top of the stack from type from to type to; see canConvert.
+	 */
+	private static void convert(MethodVisitor mv, Type from, Type to) {
+		boolean fromReference = from.getSort() == Type.OBJECT || from.getSort() == Type.ARRAY;
+		if (to.getSort() == Type.OBJECT || to.getSort() == Type.ARRAY) {
+			Type boxed = from;
+			if (!fromReference) {
+				CodeSpecsWeaver.box(mv, from);
+				boxed = Type.getObjectType("java/lang/" + CodeSpecsWeaver.boxedType(from));
+			}
+			if (!boxed.equals(to) && !to.getInternalName().equals("java/lang/Object"))
+				mv.visitTypeInsn(CHECKCAST, to.getInternalName());
+		} else if (from == Type.FLOAT_TYPE && to == Type.DOUBLE_TYPE) {
+			mv.visitInsn(F2D);
+		}
+	}
+
+	interface LocalMapping {
+		int map(int var);
+	}
+
+	/**
+	 * Copies the instructions from first up to end, mapping their locals and, if returned is not null, turning IRETURN into a jump to returned.
+	 * Replaces requires by a call that names the spec in the failure, and drops requires(true).
+	 */
+	private void emitInstructions(MethodVisitor mv, AbstractInsnNode first, AbstractInsnNode end, LocalMapping locals, Label returned) {
+		Map<LabelNode, LabelNode> labels = new HashMap<>();
+		for (AbstractInsnNode insn = first; insn != end; insn = insn.getNext())
+			if (insn instanceof LabelNode)
+				labels.put((LabelNode)insn, new LabelNode());
+		for (AbstractInsnNode insn = first; insn != end; insn = insn.getNext()) {
+			if (insn.getOpcode() == ICONST_1 && isRequires(insn.getNext(), "(Z)V")) {
+				insn = insn.getNext();
+				continue;
+			}
+			if (insn.getOpcode() == ICONST_1 && insn.getNext() instanceof LdcInsnNode && ((LdcInsnNode)insn.getNext()).cst instanceof String
+					&& isRequires(insn.getNext().getNext(), "(ZLjava/lang/String;)V")) {
+				insn = insn.getNext().getNext();
+				continue;
+			}
+			if (isRequires(insn, "(Z)V") || isRequires(insn, "(ZLjava/lang/String;)V")) {
+				if (((MethodInsnNode)insn).desc.equals("(Z)V"))
+					mv.visitInsn(ACONST_NULL);
+				mv.visitLdcInsn(specClassName.replace('/', '.'));
+				mv.visitLdcInsn(specMethodName);
+				mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "checkInlinedPrecondition", "(ZLjava/lang/String;Ljava/lang/String;Ljava/lang/String;)V", false);
+				continue;
+			}
+			switch (insn.getType()) {
+			case AbstractInsnNode.VAR_INSN:
+				mv.visitVarInsn(insn.getOpcode(), locals.map(((VarInsnNode)insn).var));
+				break;
+			case AbstractInsnNode.IINC_INSN:
+				mv.visitIincInsn(locals.map(((IincInsnNode)insn).var), ((IincInsnNode)insn).incr);
+				break;
+			case AbstractInsnNode.INSN:
+				if (returned != null && insn.getOpcode() == IRETURN) {
+					mv.visitJumpInsn(GOTO, returned);
+					break;
+				}
+				insn.accept(mv);
+				break;
+			case AbstractInsnNode.FRAME:
+			case AbstractInsnNode.LINE:
+				break;
+			default:
+				insn.clone(labels).accept(mv);
+				break;
+			}
+		}
+	}
+
+	private static boolean isRequires(AbstractInsnNode insn, String desc) {
+		if (insn == null || insn.getOpcode() != INVOKESTATIC)
+			return false;
+		MethodInsnNode call = (MethodInsnNode)insn;
+		return call.owner.equals("codespecs/CodeSpecs") && call.name.equals("requires") && call.desc.equals(desc);
+	}
+
+}
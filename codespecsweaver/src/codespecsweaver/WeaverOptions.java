@@ -0,0 +1,197 @@
+package codespecsweaver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Options passed to the agent, as in -javaagent:codespecsweaver.jar=option1,option2=value,...
+ */
+class WeaverOptions {
+	/** Print how many classes were woven and skipped when the JVM exits. */
+	boolean stats;
+	/** Directory of the persistent woven class cache, or null if the cache is disabled. */
+	String cache;
+	/** Have spec sites count calls, failures and time spent in specs. */
+	boolean metrics;
+	/** Have spec sites look up their spec methods only when they first check their specs. */
+	boolean lazySpecs;
+	/**
+	 * Copy the code of spec methods, and of the postconditions they return, into the methods they specify, rather than calling them through spec sites,
+	 * where the spec method's shape allows it and the spec is not sampled or metered. See SpecInliner.
+	 */
+	boolean inlineSpecs;
+	/** Print how much time the weaver spent in each phase when the JVM exits. */
+	boolean timing;
+	/**
+	 * Call methods with specs through invokedynamic call sites that check the spec, rather than through name$codespecs wrappers,
+	 * so that weaving adds no methods. Set when the agent is attached to a running JVM, since retransformation cannot add methods.
+	 */
+	boolean checkedCallSites;
+	/** When attaching, retransform the classes woven by the previously attached agent back to their original bytes instead. */
+	boolean unweave;
+	/** When attaching, the number of loaded classes to retransform at a time. */
+	int batchSize = 50;
+	/** When attaching, the number of milliseconds to let the application run between batches. */
+	int batchPause = 10;
+	/** The classes to weave, by internal name pattern; see PrefixTrie. */
+	final PrefixTrie classScope = new PrefixTrie();
+	/** The class loaders whose classes to weave, by class loader class name pattern. */
+	final PrefixTrie loaderScope = new PrefixTrie();
+	/**
+	 * Maps a method (x.y.Z.m, or x.y.Z.constructor), a class (x.y.Z), a package (x.y.*) or everything (*)
+	 * to N, meaning that only about one in N calls is checked.
+	 */
+	final Map<String, Integer> samplingRates = new TreeMap<>();
+
+	static WeaverOptions parse(String agentArgs) {
+		WeaverOptions options = new WeaverOptions();
+		if (agentArgs == null || agentArgs.isEmpty())
+			return options;
+		for (String arg : agentArgs.split(",")) {
+			int equals = arg.indexOf('=');
+			String key = equals < 0 ? arg : arg.substring(0, equals);
+			String value = equals < 0 ? null : arg.substring(equals + 1);
+			options.set(key.trim(), value);
+		}
+		return options;
+	}
+
+	/**
+	 * Returns a string that identifies the options that affect the weaving result.
+	 */
+	String weavingFingerprint() {
+		return "sample=" + samplingRates + ",metrics=" + metrics + ",lazySpecs=" + lazySpecs + ",inlineSpecs=" + inlineSpecs + ",checkedCallSites=" + checkedCallSites + ",classScope=" + classScope + ",loaderScope=" + loaderScope;
+	}
+
+	/**
+	 * Returns whether the include and exclude options select the given class. The name is an internal name.
+	 */
+	boolean classInScope(String className) {
+		return classScope.accepts(className);
+	}
+
+	/**
+	 * Returns whether the includeLoader and excludeLoader options select the given class loader.
+	 */
+	boolean loaderInScope(ClassLoader loader) {
+		return loaderScope.isEmpty() || loaderScope.accepts(loader.getClass().getName());
+	}
+
+	/**
+	 * Turns x.y.* into prefix x/y/, and x.y.Z into prefix x/y/Z.
+	 */
+	private static String classPattern(String pattern) {
+		return pattern.trim().replace('.', '/');
+	}
+
+	/**
+	 * Returns N such that about one in N calls of the given method should be checked.
+	 * The most specific matching sampling rate applies.
+	 */
+	int samplingRate(String className, String methodName) {
+		String name = className.replace('/', '.');
+		Integer rate = samplingRates.get(name + "." + (methodName.equals("<init>") ? "constructor" : methodName));
+		if (rate == null)
+			rate = samplingRates.get(name);
+		for (int dot = name.lastIndexOf('.'); rate == null && dot >= 0; dot = name.lastIndexOf('.', dot - 1))
+			rate = samplingRates.get(name.substring(0, dot) + ".*");
+		if (rate == null)
+			rate = samplingRates.get("*");
+		return rate == null ? 1 : rate;
+	}
+
+	void addSamplingRate(String pattern, String rate) {
+		int n;
+		try {
+			n = Integer.parseInt(rate.trim());
+		} catch (NumberFormatException e) {
+			n = 0;
+		}
+		if (n < 1)
+			throw new IllegalArgumentException("Bad codespecsweaver sampling rate for " + pattern + ": " + rate);
+		samplingRates.put(pattern.trim(), n);
+	}
+
+	void loadSamplingRates(String path) {
+		Properties properties = new Properties();
+		try (InputStream is = Files.newInputStream(Paths.get(path))) {
+			properties.load(is);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot read codespecsweaver sampling file " + path, e);
+		}
+		for (String pattern : properties.stringPropertyNames())
+			addSamplingRate(pattern, properties.getProperty(pattern));
+	}
+
+	private static int parseInt(String key, String value, int min) {
+		try {
+			int n = Integer.parseInt(value == null ? "" : value.trim());
+			if (n >= min)
+				return n;
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Expected " + key + "=N with N >= " + min + ", got " + value);
+	}
+
+	void set(String key, String value) {
+		switch (key) {
+		case "":
+			break;
+		case "stats":
+			stats = value == null || Boolean.parseBoolean(value);
+			break;
+		case "cache":
+			cache = value;
+			break;
+		case "metrics":
+			metrics = value == null || Boolean.parseBoolean(value);
+			break;
+		case "lazySpecs":
+			lazySpecs = value == null || Boolean.parseBoolean(value);
+			break;
+		case "inlineSpecs":
+			inlineSpecs = value == null || Boolean.parseBoolean(value);
+			break;
+		case "timing":
+			timing = value == null || Boolean.parseBoolean(value);
+			break;
+		case "unweave":
+			unweave = value == null || Boolean.parseBoolean(value);
+			break;
+		case "batchSize":
+			batchSize = parseInt(key, value, 1);
+			break;
+		case "batchPause":
+			batchPause = parseInt(key, value, 0);
+			break;
+		case "include":
+		case "exclude":
+			if (value == null)
+				throw new IllegalArgumentException("Expected " + key + "=pattern");
+			classScope.put(classPattern(value), key.equals("include"));
+			break;
+		case "includeLoader":
+		case "excludeLoader":
+			if (value == null)
+				throw new IllegalArgumentException("Expected " + key + "=pattern");
+			loaderScope.put(value.trim(), key.equals("includeLoader"));
+			break;
+		case "sample":
+			int colon = value == null ? -1 : value.lastIndexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("Expected sample=pattern:N, got " + value);
+			addSamplingRate(value.substring(0, colon), value.substring(colon + 1));
+			break;
+		case "samplingFile":
+			loadSamplingRates(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown codespecsweaver option: " + key);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package codespecsweaver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A content-addressed on-disk cache of weaving results, shared across JVM runs.
+ *
+ * An entry is keyed by a hash of the weaver fingerprint and the input class bytes.
+ * Since the weaving result also depends on the other classes the weaver consulted (owners, superclasses, spec classes),
+ * each entry records the hashes of those classes as seen by the class loader at the time, and is used only if they are unchanged.
+ * An entry also records the methods that weaving pushed past an inlining threshold, for the stats report of runs that take the class from the cache.
+ *
+ * The cache directory contains an append-only index file, which is memory-mapped and parsed when the agent starts,
+ * and a blobs directory holding the woven class files, named by the hash of their contents.
+ */
+class WovenClassCache {
+	private static final int RECORD_MAGIC = 0xC0DE5BEC;
+	static final String ABSENT = "-";
+
+	static class Dependency {
+		final String className;
+		final String digest;
+
+		Dependency(String className, String digest) {
+			this.className = className;
+			this.digest = digest;
+		}
+	}
+
+	static class Entry {
+		final List<Dependency> dependencies;
+		/** The hash of the woven class file, or null if the weaver left the class untouched. */
+		final String blob;
+		final List<MethodSizeReport.Crossing> crossings;
+
+		Entry(List<Dependency> dependencies, String blob, List<MethodSizeReport.Crossing> crossings) {
+			this.dependencies = dependencies;
+			this.blob = blob;
+			this.crossings = crossings;
+		}
+	}
+
+	/** Returned by lookup if the weaver is known to leave the class untouched. */
+	static final byte[] UNCHANGED = new byte[0];
+
+	final Path directory;
+	final Path indexFile;
+	final Path blobDirectory;
+	final String fingerprint;
+	final Map<String, List<Entry>> index = new ConcurrentHashMap<>();
+	final ClassLoaderCache<String, String> resourceDigests = new ClassLoaderCache<>();
+	private volatile boolean failed;
+
+	WovenClassCache(Path directory, String fingerprint) throws IOException {
+		this.directory = directory;
+		this.indexFile = directory.resolve("index");
+		this.blobDirectory = directory.resolve("blobs");
+		this.fingerprint = fingerprint;
+		Files.createDirectories(blobDirectory);
+		readIndex();
+	}
+
+	private void readIndex() throws IOException {
+		if (!Files.exists(indexFile))
+			return;
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			while (buffer.remaining() >= 8) {
+				if (buffer.getInt() != RECORD_MAGIC)
+					break;
+				int length = buffer.getInt();
+				if (length < 0 || length > buffer.remaining())
+					break; // A record torn by a crash while appending.
+				byte[] record = new byte[length];
+				buffer.get(record);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+				String key = in.readUTF();
+				String blob = in.readBoolean() ? in.readUTF() : null;
+				int dependencyCount = in.readInt();
+				List<Dependency> dependencies = new ArrayList<>(dependencyCount);
+				for (int i = 0; i < dependencyCount; i++)
+					dependencies.add(new Dependency(in.readUTF(), in.readUTF()));
+				List<MethodSizeReport.Crossing> crossings = new ArrayList<>();
+				for (int i = in.readInt(); i > 0; i--) {
+					MethodSizeReport.Crossing crossing = new MethodSizeReport.Crossing(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt(),
+							MethodSizeReport.Threshold.valueOf(in.readUTF()));
+					crossing.outline = in.readBoolean();
+					crossing.outlinedSize = in.readInt();
+					crossings.add(crossing);
+				}
+				addEntry(key, new Entry(dependencies, blob, crossings));
+			}
+		}
+	}
+
+	private void addEntry(String key, Entry entry) {
+		index.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(entry);
+	}
+
+	String keyFor(byte[] classfileBuffer) {
+		MessageDigest digest = newDigest();
+		digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+		digest.update(classfileBuffer);
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Returns the cached weaving result, UNCHANGED if the weaver is known to leave the class untouched,
+	 * or null if there is no valid entry. Adds the methods that weaving the class pushed past an inlining threshold to the given list.
+	 */
+	byte[] lookup(ClassLoader classLoader, String key, List<MethodSizeReport.Crossing> crossings) {
+		if (failed)
+			return null;
+		List<Entry> entries = index.get(key);
+		if (entries == null)
+			return null;
+		for (Entry entry : entries) {
+			if (!dependenciesUnchanged(classLoader, entry))
+				continue;
+			if (entry.blob == null)
+				return UNCHANGED;
+			byte[] result;
+			try {
+				result = Files.readAllBytes(blobDirectory.resolve(entry.blob + ".class"));
+			} catch (IOException e) {
+				continue; // Someone cleaned the blobs directory; weave again.
+			}
+			crossings.addAll(entry.crossings);
+			return result;
+		}
+		return null;
+	}
+
+	private boolean dependenciesUnchanged(ClassLoader classLoader, Entry entry) {
+		for (Dependency dependency : entry.dependencies)
+			if (!resourceDigest(classLoader, dependency.className).equals(dependency.digest))
+				return false;
+		return true;
+	}
+
+	void store(ClassLoader classLoader, String key, Collection<String> dependencyNames, byte[] result, List<MethodSizeReport.Crossing> crossings) {
+		if (failed)
+			return;
+		try {
+			List<Dependency> dependencies = new ArrayList<>(dependencyNames.size());
+			for (String name : dependencyNames)
+				dependencies.add(new Dependency(name, resourceDigest(classLoader, name)));
+			String blob = null;
+			if (result != null) {
+				blob = toHex(newDigest().digest(result));
+				Path blobFile = blobDirectory.resolve(blob + ".class");
+				if (!Files.exists(blobFile)) {
+					Path tempFile = Files.createTempFile(blobDirectory, blob, ".tmp");
+					Files.write(tempFile, result);
+					Files.move(tempFile, blobFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Entry entry = new Entry(dependencies, blob, new ArrayList<>(crossings));
+			appendRecord(key, entry);
+			addEntry(key, entry);
+		} catch (IOException e) {
+			failed = true;
+			System.err.println("codespecsweaver: disabling the woven class cache in " + directory + ": " + e);
+		}
+	}
+
+	private void appendRecord(String key, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(key);
+		out.writeBoolean(entry.blob != null);
+		if (entry.blob != null)
+			out.writeUTF(entry.blob);
+		out.writeInt(entry.dependencies.size());
+		for (Dependency dependency : entry.dependencies) {
+			out.writeUTF(dependency.className);
+			out.writeUTF(dependency.digest);
+		}
+		out.writeInt(entry.crossings.size());
+		for (MethodSizeReport.Crossing crossing : entry.crossings) {
+			out.writeUTF(crossing.className);
+			out.writeUTF(crossing.methodName);
+			out.writeUTF(crossing.desc);
+			out.writeInt(crossing.originalSize);
+			out.writeInt(crossing.wovenSize);
+			out.writeUTF(crossing.threshold.name());
+			out.writeBoolean(crossing.outline);
+			out.writeInt(crossing.outlinedSize);
+		}
+		out.flush();
+		ByteBuffer record = ByteBuffer.allocate(8 + bytes.size());
+		record.putInt(RECORD_MAGIC).putInt(bytes.size()).put(bytes.toByteArray()).flip();
+		synchronized (this) {
+			try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				channel.lock(); // Released when the channel is closed.
+				while (record.hasRemaining())
+					channel.write(record);
+			}
+		}
+	}
+
+	/**
+	 * Returns a hash of the class file the class loader provides for the given class, or ABSENT if there is none.
+	 */
+	String resourceDigest(ClassLoader classLoader, String className) {
+		return resourceDigests.get(classLoader, className, name -> {
+			try (InputStream is = classLoader.getResourceAsStream(name + ".class")) {
+				if (is == null)
+					return ABSENT;
+				MessageDigest digest = newDigest();
+				byte[] buffer = new byte[8192];
+				for (int n; (n = is.read(buffer)) > 0; )
+					digest.update(buffer, 0, n);
+				return toHex(digest.digest());
+			} catch (IOException e) {
+				throw new RuntimeException(name, e);
+			}
+		});
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(chars);
+	}
+}